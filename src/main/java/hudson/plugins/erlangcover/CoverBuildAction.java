@@ -7,32 +7,22 @@ import hudson.model.HealthReportingAction;
 import hudson.model.Result;
 import hudson.plugins.erlangcover.targets.CoverageMetric;
 import hudson.plugins.erlangcover.targets.CoverageResult;
+import hudson.plugins.erlangcover.targets.CoverageResultCodec;
 import hudson.plugins.erlangcover.targets.CoverageTarget;
 import hudson.util.*;
-import org.jfree.chart.ChartFactory;
-import org.jfree.chart.JFreeChart;
-import org.jfree.chart.axis.CategoryAxis;
-import org.jfree.chart.axis.CategoryLabelPositions;
-import org.jfree.chart.axis.NumberAxis;
-import org.jfree.chart.plot.CategoryPlot;
-import org.jfree.chart.plot.PlotOrientation;
-import org.jfree.chart.renderer.category.LineAndShapeRenderer;
-import org.jfree.chart.title.LegendTitle;
-import org.jfree.data.category.CategoryDataset;
-import org.jfree.ui.RectangleEdge;
-import org.jfree.ui.RectangleInsets;
 import org.jvnet.localizer.Localizable;
 import org.kohsuke.stapler.StaplerProxy;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
-import java.awt.*;
 import java.io.File;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
-import java.util.Calendar;
+import java.util.Collections;
 import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,7 +46,6 @@ public class CoverBuildAction implements HealthReportingAction, StaplerProxy {
     private Map<CoverageMetric, Ratio> result;
     private HealthReport health = null;
 
-    private transient WeakReference<CoverageResult> report;
     private boolean onlyStable;
 
 
@@ -179,14 +168,13 @@ public class CoverBuildAction implements HealthReportingAction, StaplerProxy {
         }
     }
 
-    private boolean includeOnlyStable() {
+    boolean includeOnlyStable() {
         return onlyStable;
     }
 
     CoverBuildAction(AbstractBuild<?, ?> owner, CoverageResult r, CoverageTarget healthyTarget,
                      CoverageTarget unhealthyTarget, boolean onlyStable, boolean failUnhealthy, boolean failUnstable, boolean autoUpdateHealth, boolean autoUpdateStability) {
         this.owner = owner;
-        this.report = new WeakReference<CoverageResult>(r);
         this.healthyTarget = healthyTarget;
         this.unhealthyTarget = unhealthyTarget;
         this.onlyStable = onlyStable;
@@ -195,6 +183,8 @@ public class CoverBuildAction implements HealthReportingAction, StaplerProxy {
         this.autoUpdateHealth = autoUpdateHealth;
         this.autoUpdateStability = autoUpdateStability;
         r.setOwner(owner);
+        r.freeze();
+        CoverageResultCache.put(owner, r);
         if (result == null) {
             result = new EnumMap<CoverageMetric,Ratio>(CoverageMetric.class);
             result.putAll(r.getResults());
@@ -205,30 +195,70 @@ public class CoverBuildAction implements HealthReportingAction, StaplerProxy {
 
     /**
      * Obtains the detailed {@link hudson.plugins.erlangcover.targets.CoverageResult} instance.
+     * <p/>
+     * Result is frozen and shared by all requests through {@link CoverageResultCache}. If it has to be loaded, the
+     * first request loads it and the concurrent ones wait for the same load.
      */
-    public synchronized CoverageResult getResult() {
-        if (report != null) {
-            CoverageResult r = report.get();
-            if (r != null) return r;
-        }
-
-        CoverageResult r = null;
-        for (File dataFile : CoverPublisher.getCoverData(owner)) {
-            try {
-                r = CoverCoverageParser.parse(dataFile, r);
-            } catch (IOException e) {
-                logger.log(Level.WARNING, "Failed to load " + dataFile, e);
+    public CoverageResult getResult() {
+        return CoverageResultCache.get(owner, new Callable<CoverageResult>() {
+            public CoverageResult call() {
+                return loadResult();
             }
+        });
+    }
+
+    private CoverageResult loadResult() {
+        CoverageResult r = loadSnapshot(CoverPublisher.getCoverSnapshot(owner));
+        if (r == null) {
+            r = parseCoverData();
         }
         if (r != null) {
             r.setOwner(owner);
-            report = new WeakReference<CoverageResult>(r);
-            return r;
-        } else {
+            r.freeze();
+        }
+        return r;
+    }
+
+    private CoverageResult loadSnapshot(File snapshot) {
+        if (!snapshot.exists()) {
+            return null;
+        }
+        try {
+            return CoverageResultCodec.load(snapshot);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to load " + snapshot + ", parsing cover data instead", e);
             return null;
         }
     }
 
+    /**
+     * Parses raw cover data archived by builds without coverage snapshot, and saves the snapshot for the
+     * subsequent loads.
+     */
+    private CoverageResult parseCoverData() {
+        CoverageResult r;
+        Map<File, IOException> failures = new LinkedHashMap<File, IOException>();
+        try {
+            r = CoverCoverageParser.parse(CoverPublisher.getCoverData(owner), null, failures);
+        } catch (InterruptedException e) {
+            logger.log(Level.WARNING, "Interrupted while loading coverage of " + owner, e);
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        for (Map.Entry<File, IOException> failure : failures.entrySet()) {
+            logger.log(Level.WARNING, "Failed to load " + failure.getKey(), failure.getValue());
+        }
+        if (r != null && failures.isEmpty()) {
+            File snapshot = CoverPublisher.getCoverSnapshot(owner);
+            try {
+                CoverageResultCodec.save(CoverageResultCodec.encode(r), snapshot);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to save " + snapshot, e);
+            }
+        }
+        return r;
+    }
+
     private static final Logger logger = Logger.getLogger(CoverBuildAction.class.getName());
 
     public static CoverBuildAction load(AbstractBuild<?, ?> build, CoverageResult result, CoverageTarget healthyTarget,
@@ -237,73 +267,36 @@ public class CoverBuildAction implements HealthReportingAction, StaplerProxy {
     }
 
     /**
-     * Generates the graph that shows the coverage trend up to this report.
+     * Getter for property 'results'.
+     *
+     * @return Overall coverage of the build, kept with the build, so the coverage result is loaded only for the
+     *         builds recorded without it.
      */
-    public Graph getGraph() throws IOException {
-        final DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> dsb = new DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel>();
-
-        for (CoverBuildAction a = this; a != null; a = a.getPreviousResult()) {
-            ChartUtil.NumberOnlyBuildLabel label = new ChartUtil.NumberOnlyBuildLabel(a.owner);
-            for (Map.Entry<CoverageMetric, Ratio> value : a.result.entrySet()) {
-                dsb.add(value.getValue().getPercentageFloat(), value.getKey().getDisplayName(), label);
+    public Map<CoverageMetric, Ratio> getResults() {
+        if (result == null) {
+            CoverageResult r = getResult();
+            Map<CoverageMetric, Ratio> results = new EnumMap<CoverageMetric, Ratio>(CoverageMetric.class);
+            if (r != null) {
+                results.putAll(r.getResults());
             }
+            result = results;
         }
-
-        return new Graph(owner.getTimestamp(), 500, 200) {
-            @Override
-            protected JFreeChart createGraph() {
-                return createChart(dsb.build());
-            }
-        };
+        return Collections.unmodifiableMap(result);
     }
 
-    private JFreeChart createChart(CategoryDataset dataset) {
-
-        final JFreeChart chart = ChartFactory.createLineChart(
-                null,                   // chart title
-                null,                   // unused
-                "%",                    // range axis label
-                dataset,                  // data
-                PlotOrientation.VERTICAL, // orientation
-                true,                     // include legend
-                true,                     // tooltips
-                false                     // urls
-        );
-
-        // NOW DO SOME OPTIONAL CUSTOMISATION OF THE CHART...
-
-        final LegendTitle legend = chart.getLegend();
-        legend.setPosition(RectangleEdge.RIGHT);
-
-        chart.setBackgroundPaint(Color.white);
-
-        final CategoryPlot plot = chart.getCategoryPlot();
-
-        // plot.setAxisOffset(new Spacer(Spacer.ABSOLUTE, 5.0, 5.0, 5.0, 5.0));
-        plot.setBackgroundPaint(Color.WHITE);
-        plot.setOutlinePaint(null);
-        plot.setRangeGridlinesVisible(true);
-        plot.setRangeGridlinePaint(Color.black);
-
-        CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
-        plot.setDomainAxis(domainAxis);
-        domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
-        domainAxis.setLowerMargin(0.0);
-        domainAxis.setUpperMargin(0.0);
-        domainAxis.setCategoryMargin(0.0);
-
-        final NumberAxis rangeAxis = (NumberAxis) plot.getRangeAxis();
-        rangeAxis.setStandardTickUnits(NumberAxis.createIntegerTickUnits());
-        rangeAxis.setUpperBound(100);
-        rangeAxis.setLowerBound(0);
-
-        final LineAndShapeRenderer renderer = (LineAndShapeRenderer) plot.getRenderer();
-        renderer.setBaseStroke(new BasicStroke(2.0f));
-        ColorPalette.apply(renderer);
-
-        // crop extra space around the graph
-        plot.setInsets(new RectangleInsets(5.0, 0, 0, 5.0));
+    /**
+     * Generates the graph that shows the coverage trend up to this report.
+     */
+    public Graph getGraph() throws IOException {
+        return createGraph(CoverageTrend.getEntries(owner.getProject(), owner.getNumber()));
+    }
 
-        return chart;
+    /**
+     * Generates the graph of the coverage trend.
+     *
+     * @param entries builds of the trend in ascending order
+     */
+    public static Graph createGraph(List<CoverageTrend.Entry> entries) {
+        return new CoverageGraph(entries);
     }
 }
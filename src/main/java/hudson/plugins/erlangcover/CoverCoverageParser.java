@@ -1,16 +1,31 @@
 package hudson.plugins.erlangcover;
 
-import com.ericsson.otp.erlang.*;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.io.Closeables;
-import hudson.FilePath;
-import hudson.plugins.erlangcover.otp.FixedOtpInputStream;
+import hudson.plugins.erlangcover.otp.CoverDataDecoder;
+import hudson.plugins.erlangcover.otp.CoverDataHandler;
+import hudson.plugins.erlangcover.otp.CoverDataIndex;
+import hudson.plugins.erlangcover.otp.MappedCoverData;
+import hudson.plugins.erlangcover.otp.ModuleFilter;
 import hudson.plugins.erlangcover.targets.CoverageElement;
 import hudson.plugins.erlangcover.targets.CoverageMetric;
 import hudson.plugins.erlangcover.targets.CoverageResult;
+import hudson.util.DaemonThreadFactory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Parse Erlang Cover data file.
@@ -33,9 +48,16 @@ import java.util.Set;
  */
 public class CoverCoverageParser {
 
-    private static OtpErlangAtom SIZE_ATOM = new OtpErlangAtom("$size");
-    private static OtpErlangAtom BUMP_ATOM = new OtpErlangAtom("bump");
-    private static OtpErlangAtom FILE_ATOM = new OtpErlangAtom("file");
+    /**
+     * Maximum number of files parsed concurrently.
+     */
+    private static final int PARALLELISM = Math.max(1, Integer.getInteger(
+            CoverCoverageParser.class.getName() + ".parallelism", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Number of slices per thread indexed file is split into, to even out the load.
+     */
+    private static final int SLICES_PER_THREAD = 4;
 
     /**
      * Do not instantiate CoverCoverageParser.
@@ -48,16 +70,201 @@ public class CoverCoverageParser {
     }
 
     public static CoverageResult parse(File inFile, CoverageResult cumulative, Set<String> sourcePaths) throws IOException {
-        InputStream fin = new FileInputStream(inFile);
+        return parse(inFile, cumulative, sourcePaths, ModuleFilter.ALL);
+    }
+
+    /**
+     * Parses cover data file. File is mapped into memory and decoded in place.
+     */
+    public static CoverageResult parse(File inFile, CoverageResult cumulative, Set<String> sourcePaths,
+                                       ModuleFilter filter) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(inFile, "r");
         try {
-            InputStream in = new BufferedInputStream(fin);
+            if (cumulative == null) {
+                cumulative = new CoverageResult(CoverageElement.PROJECT, null, Messages.CoverCoverageParser_name());
+            }
+            MappedCoverData data = new MappedCoverData(file.getChannel());
+            new CoverDataDecoder(new ResultBuilder(cumulative, sourcePaths), filter).decode(data);
+            return cumulative;
+        } finally {
+            Closeables.closeQuietly(file);
+        }
+    }
+
+    /**
+     * Parses single cover data file on all cores. First pass indexes the terms using their framing only, second
+     * pass decodes slices of the index in parallel, each into its own tree, and the trees are merged.
+     */
+    public static CoverageResult parseIndexed(File inFile, CoverageResult cumulative, Set<String> sourcePaths)
+            throws IOException, InterruptedException {
+        return parseIndexed(inFile, cumulative, sourcePaths, ModuleFilter.ALL);
+    }
+
+    public static CoverageResult parseIndexed(File inFile, CoverageResult cumulative, Set<String> sourcePaths,
+                                              final ModuleFilter filter) throws IOException, InterruptedException {
+        RandomAccessFile file = new RandomAccessFile(inFile, "r");
+        try {
+            if (cumulative == null) {
+                cumulative = new CoverageResult(CoverageElement.PROJECT, null, Messages.CoverCoverageParser_name());
+            }
+            final FileChannel channel = file.getChannel();
+            final CoverDataIndex index = CoverDataIndex.build(new MappedCoverData(channel));
+
+            int slices = Math.min(index.size(), PARALLELISM * SLICES_PER_THREAD);
+            CoverageResult rootCoverage;
+            ExecutorService executor = Executors.newFixedThreadPool(PARALLELISM, new DaemonThreadFactory());
             try {
-                return parse(in, cumulative, sourcePaths);
+                List<Future<Partial>> futures = new ArrayList<Future<Partial>>(slices);
+                for (int i = 0; i < slices; i++) {
+                    final int from = (int) ((long) index.size() * i / slices);
+                    final int to = (int) ((long) index.size() * (i + 1) / slices);
+                    final Set<String> paths = (sourcePaths != null) ? new HashSet<String>() : null;
+                    futures.add(executor.submit(new Callable<Partial>() {
+                        public Partial call() throws IOException {
+                            // every slice maps only the region it decodes and builds its own tree
+                            long end = index.getOffset(to - 1) + index.getSize(to - 1);
+                            CoverageResult slice = new CoverageResult(CoverageElement.PROJECT, null,
+                                    Messages.CoverCoverageParser_name());
+                            new CoverDataDecoder(new ResultBuilder(slice, paths), filter)
+                                    .decode(new MappedCoverData(channel, end), index, from, to);
+                            return new Partial(slice, paths);
+                        }
+                    }));
+                }
+                List<CoverageResult> partials = new ArrayList<CoverageResult>(slices + 1);
+                partials.add(cumulative);
+                for (Future<Partial> future : futures) {
+                    try {
+                        Partial partial = future.get();
+                        partials.add(partial.result);
+                        if (sourcePaths != null) {
+                            sourcePaths.addAll(partial.sourcePaths);
+                        }
+                    } catch (ExecutionException e) {
+                        Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                        throw Throwables.propagate(e.getCause());
+                    }
+                }
+                rootCoverage = merge(executor, partials);
             } finally {
-                Closeables.closeQuietly(in);
+                executor.shutdownNow();
+            }
+
+            // Bump terms could be decoded before the file term of their module
+            for (CoverageResult moduleResult : rootCoverage.getChildrenReal().values()) {
+                for (CoverageResult funcResult : moduleResult.getChildrenReal().values()) {
+                    funcResult.setRelativeSourcePath(moduleResult.getRelativeSourcePath());
+                }
+            }
+            return rootCoverage;
+        } finally {
+            Closeables.closeQuietly(file);
+        }
+    }
+
+    public static CoverageResult parse(File[] files, Set<String> sourcePaths, Map<File, IOException> failures)
+            throws InterruptedException {
+        return parse(files, ModuleFilter.ALL, sourcePaths, failures);
+    }
+
+    /**
+     * Parses cover data files concurrently, each into its own tree, then merges the trees pairwise.
+     * Result is the same as parsing the files one after another into a cumulative tree.
+     *
+     * @param files       cover data files
+     * @param filter      modules to parse, terms of other modules are skipped
+     * @param sourcePaths collects guessed source paths, may be <code>null</code>
+     * @param failures    collects files that failed to parse
+     * @return merged tree or <code>null</code> if no file was parsed
+     */
+    public static CoverageResult parse(File[] files, final ModuleFilter filter, Set<String> sourcePaths,
+                                       Map<File, IOException> failures) throws InterruptedException {
+        if (files.length == 1) {
+            // Single file is decoded on all cores instead
+            try {
+                return parseIndexed(files[0], null, sourcePaths, filter);
+            } catch (IOException e) {
+                failures.put(files[0], e);
+                return null;
+            }
+        }
+
+        int threads = Math.max(1, Math.min(files.length, PARALLELISM));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory());
+        try {
+            List<Future<Partial>> futures = new ArrayList<Future<Partial>>(files.length);
+            for (final File file : files) {
+                final Set<String> paths = (sourcePaths != null) ? new HashSet<String>() : null;
+                futures.add(executor.submit(new Callable<Partial>() {
+                    public Partial call() throws IOException {
+                        return new Partial(parse(file, null, paths, filter), paths);
+                    }
+                }));
+            }
+
+            List<CoverageResult> partials = new ArrayList<CoverageResult>(files.length);
+            for (int i = 0; i < files.length; i++) {
+                try {
+                    Partial partial = futures.get(i).get();
+                    partials.add(partial.result);
+                    if (sourcePaths != null) {
+                        sourcePaths.addAll(partial.sourcePaths);
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        failures.put(files[i], (IOException) e.getCause());
+                    } else {
+                        throw Throwables.propagate(e.getCause());
+                    }
+                }
             }
+            return merge(executor, partials);
         } finally {
-            Closeables.closeQuietly(fin);
+            executor.shutdownNow();
+        }
+    }
+
+    private static CoverageResult merge(ExecutorService executor, List<CoverageResult> partials)
+            throws InterruptedException {
+        while (partials.size() > 1) {
+            List<Future<CoverageResult>> futures = new ArrayList<Future<CoverageResult>>();
+            for (int i = 0; i + 1 < partials.size(); i += 2) {
+                final CoverageResult left = partials.get(i);
+                final CoverageResult right = partials.get(i + 1);
+                futures.add(executor.submit(new Callable<CoverageResult>() {
+                    public CoverageResult call() {
+                        left.merge(right);
+                        return left;
+                    }
+                }));
+            }
+
+            List<CoverageResult> merged = new ArrayList<CoverageResult>(futures.size() + 1);
+            for (Future<CoverageResult> future : futures) {
+                try {
+                    merged.add(future.get());
+                } catch (ExecutionException e) {
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+            if (partials.size() % 2 != 0) {
+                merged.add(partials.get(partials.size() - 1));
+            }
+            partials = merged;
+        }
+        return partials.isEmpty() ? null : partials.get(0);
+    }
+
+    /**
+     * Tree and source paths parsed from single file.
+     */
+    private static class Partial {
+        final CoverageResult result;
+        final Set<String> sourcePaths;
+
+        Partial(CoverageResult result, Set<String> sourcePaths) {
+            this.result = result;
+            this.sourcePaths = sourcePaths;
         }
     }
 
@@ -81,109 +288,90 @@ public class CoverCoverageParser {
         if (rootCoverage == null) {
             rootCoverage = new CoverageResult(CoverageElement.PROJECT, null, Messages.CoverCoverageParser_name());
         }
-        try {
-            CoverageResult moduleResult = null;
-            OtpErlangObject term;
-            while ((term = readTerm(in)) != null) {
-                if (term instanceof OtpErlangTuple) {
-                    OtpErlangTuple tuple = (OtpErlangTuple) term;
-                    if (tuple.arity() == 3 && FILE_ATOM.equals(tuple.elementAt(0))) {
-                        // {file,sip_ua_client,"/Users/idubrov/Projects/siperl/apps/sip/ebin/sip_ua_client.beam"}
-                        String module = eatom(tuple, 1);
-                        String path = estring(tuple, 2);
+        new CoverDataDecoder(new ResultBuilder(rootCoverage, sourcePaths)).decode(in);
+        return rootCoverage;
+    }
 
-                        if (sourcePaths != null) {
-                            // Let's guess source paths
-                            // FIXME: What if path was generated on different OS?
-                            // Remove ebin/<file>.beam or .eunit/<file>.beam
-                            String sourcePath = new File(path).getParentFile().getParentFile().getAbsolutePath();
-                            sourcePaths.add(sourcePath + "/src");
-                        }
+    /**
+     * Builds {@link CoverageResult} tree from the decoded terms.
+     */
+    private static class ResultBuilder implements CoverDataHandler {
+        protected final CoverageResult rootCoverage;
+        private final Set<String> sourcePaths;
 
-                        moduleResult = rootCoverage
-                                .createChild(CoverageElement.ERLANG_MODULE, module);
-                        moduleResult.setRelativeSourcePath(module + ".erl");
-                    } else if (tuple.arity() == 2 && tuple.elementAt(0) instanceof OtpErlangTuple) {
-                        //{{bump, Module, Function, Arity, Clause, Line}, HitCnt}]
-                        OtpErlangTuple tuple2 = (OtpErlangTuple) tuple.elementAt(0);
-                        if (tuple2.arity() == 6 && BUMP_ATOM.equals(tuple2.elementAt(0))) {
-                            String module = eatom(tuple2, 1);
-                            String function = eatom(tuple2, 2);
-                            int arity = eint(tuple2, 3);
-                            int clause = eint(tuple2, 4);
-                            int line = eint(tuple2, 5);
-                            int hits = eint(tuple, 1);
-
-                            // Ignore generated functions
-                            if (line != 0) {
-                                // FIXME: moduleResult should be non-null!
-
-                                String funcName = function + '/' + arity;
-                                CoverageResult funcResult =
-                                        moduleResult.createChild(CoverageElement.ERLANG_FUNCTION, funcName);
-
-                                // FIXME: Clause painting?...
-                                funcResult.setRelativeSourcePath(moduleResult.getRelativeSourcePath());
-                                funcResult.paint(line, hits);
-                                funcResult.updateMetric(CoverageMetric.LINE, Ratio.create((hits == 0) ? 0 : 1, 1));
-                            }
-                        }
-                    }
-                }
-                //System.err.println(term);
-            }
-        } catch (OtpErlangException e) {
-            throw new IOException("File is not valid cover data file.", e);
+        private String moduleName;
+        private CoverageResult moduleResult;
+
+        /**
+         * Function names by function atom and arity. Decoder returns shared atom instances, so the name is
+         * concatenated once per function rather than once per line.
+         */
+        private final Map<String, String[]> functionNames = new HashMap<String, String[]>();
+
+        ResultBuilder(CoverageResult rootCoverage, Set<String> sourcePaths) {
+            this.rootCoverage = rootCoverage;
+            this.sourcePaths = sourcePaths;
         }
-        return rootCoverage;
-    }
 
-    private static String eatom(OtpErlangTuple tuple, int pos) {
-        return ((OtpErlangAtom) tuple.elementAt(pos)).atomValue();
-    }
+        public void onFile(String module, String path) {
+            // {file,sip_ua_client,"/Users/idubrov/Projects/siperl/apps/sip/ebin/sip_ua_client.beam"}
+            if (sourcePaths != null) {
+                // Let's guess source paths
+                // FIXME: What if path was generated on different OS?
+                // Remove ebin/<file>.beam or .eunit/<file>.beam
+                String sourcePath = new File(path).getParentFile().getParentFile().getAbsolutePath();
+                sourcePaths.add(sourcePath + "/src");
+            }
 
-    private static int eint(OtpErlangTuple tuple, int pos) throws OtpErlangRangeException {
-        return ((OtpErlangLong) tuple.elementAt(pos)).intValue();
-    }
+            moduleResult(module).setRelativeSourcePath(module + ".erl");
+        }
 
-    private static String estring(OtpErlangTuple tuple, int pos) {
-        return ((OtpErlangString) tuple.elementAt(pos)).stringValue();
-    }
+        public void onBump(String module, String function, int arity, int clause, int line, int hits) {
+            // Ignore generated functions
+            if (line != 0) {
+                CoverageResult moduleResult = moduleResult(module);
+                String funcName = functionName(function, arity);
+                CoverageResult funcResult =
+                        moduleResult.createChild(CoverageElement.ERLANG_FUNCTION, funcName);
 
-    /**
-     * Java implementation of cover:get_term/1
-     *
-     * @param in
-     * @return
-     * @throws IOException
-     * @throws OtpErlangDecodeException
-     */
-    private static OtpErlangObject readTerm(InputStream in) throws IOException, OtpErlangException {
-        int size = in.read();
-        if (size == -1) {
-            return null; // EOF
+                // FIXME: Clause painting?...
+                funcResult.setRelativeSourcePath(moduleResult.getRelativeSourcePath());
+                funcResult.paint(line, hits);
+                funcResult.updateMetric(CoverageMetric.LINE, Ratio.create((hits == 0) ? 0 : 1, 1));
+            }
+        }
+
+        private String functionName(String function, int arity) {
+            String[] names = functionNames.get(function);
+            if (names == null || names.length <= arity) {
+                String[] grown = new String[arity + 1];
+                if (names != null) {
+                    System.arraycopy(names, 0, grown, 0, names.length);
+                }
+                names = grown;
+                functionNames.put(function, names);
+            }
+            String name = names[arity];
+            if (name == null) {
+                name = function + '/' + arity;
+                names[arity] = name;
+            }
+            return name;
         }
-        OtpErlangObject term = readTerm(in, size);
-
-        // match {'$size', size2}
-        if (term instanceof OtpErlangTuple) {
-            OtpErlangTuple tuple = (OtpErlangTuple) term;
-            if (tuple.arity() == 2 && SIZE_ATOM.equals(tuple.elementAt(0))) {
-                OtpErlangLong erlangInt = (OtpErlangLong) tuple.elementAt(1);
-                term = readTerm(in, erlangInt.intValue());
+
+        /**
+         * Bump terms of the module follow its file term, so last module is cached.
+         */
+        protected CoverageResult moduleResult(String module) {
+            if (!module.equals(moduleName)) {
+                moduleName = module;
+                moduleResult = createModule(module);
             }
+            return moduleResult;
         }
-        return term;
-    }
 
-    private static OtpErlangObject readTerm(InputStream in, int size) throws IOException, OtpErlangDecodeException {
-        byte[] buf = new byte[size];
-        if (in.read(buf) != buf.length) {
-            throw new EOFException("File is not valid cover data file.");
+        protected CoverageResult createModule(String module) {
+            return rootCoverage.createChild(CoverageElement.ERLANG_MODULE, module);
         }
-        OtpInputStream ein = new FixedOtpInputStream(buf);
-        OtpErlangObject term = ein.read_any();
-        return term;
     }
 }
-
@@ -6,6 +6,8 @@ import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Project level action.
@@ -62,39 +64,47 @@ public class CoverProjectAction extends Actionable implements ProminentProjectAc
      * @return Value for property 'lastResult'.
      */
     public CoverBuildAction getLastResult() {
-
-        for (AbstractBuild<?, ?> b = getLastBuildToBeConsidered(); b != null; b = b.getPreviousNotFailedBuild()) {
-            if (b.getResult() == Result.FAILURE || (b.getResult() != Result.SUCCESS && onlyStable))
-                continue;
-            CoverBuildAction r = b.getAction(CoverBuildAction.class);
-            if (r != null) {
-                return r;
-            }
+        Integer number = getLastResultBuild();
+        if (number == null) {
+            return null;
         }
-        return null;
+        AbstractBuild<?, ?> b = project.getBuildByNumber(number);
+        return b == null ? null : b.getAction(CoverBuildAction.class);
     }
 
-    private AbstractBuild<?, ?> getLastBuildToBeConsidered() {
-        return onlyStable ? project.getLastStableBuild() : project.getLastSuccessfulBuild();
+    /**
+     * Getter for property 'lastEntry'. Read from the trend file, the build is not loaded.
+     *
+     * @return Coverage of the last build that counts in the trend.
+     */
+    public CoverageTrend.Entry getLastEntry() {
+        return CoverageTrend.getLastEntry(project, Integer.MAX_VALUE, onlyStable);
     }
+
+    /**
+     * Getter for property 'trend'.
+     *
+     * @return Builds of the trend up to the last one, in ascending order.
+     */
+    public List<CoverageTrend.Entry> getTrend() {
+        CoverageTrend.Entry last = getLastEntry();
+        return last == null ? Collections.<CoverageTrend.Entry>emptyList()
+                : CoverageTrend.getEntries(project, last.getNumber());
+    }
+
      /**
      * Getter for property 'lastResult'.
      *
      * @return Value for property 'lastResult'.
      */
     public Integer getLastResultBuild() {
-        for (AbstractBuild<?, ?> b = getLastBuildToBeConsidered(); b != null; b = b.getPreviousNotFailedBuild()) {
-            if (b.getResult() == Result.FAILURE || (b.getResult() != Result.SUCCESS && onlyStable))
-                continue;
-            CoverBuildAction r = b.getAction(CoverBuildAction.class);
-            if (r != null)
-                return b.getNumber();
-        }
-        return null;
+        CoverageTrend.Entry last = getLastEntry();
+        return last == null ? null : last.getNumber();
     }
 
     public Graph getGraph() throws IOException {
-        return (getLastResult() != null) ? getLastResult().getGraph() : null;
+        List<CoverageTrend.Entry> trend = getTrend();
+        return trend.isEmpty() ? null : CoverBuildAction.createGraph(trend);
     }
 
     public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
@@ -3,6 +3,7 @@ package hudson.plugins.erlangcover;
 import com.ericsson.otp.erlang.OtpErlangDecodeException;
 import com.ericsson.otp.erlang.OtpInputStream;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 import hudson.Extension;
 import hudson.FilePath;
@@ -12,10 +13,12 @@ import hudson.maven.ExecutedMojo;
 import hudson.maven.MavenBuild;
 import hudson.model.*;
 import hudson.plugins.erlangcover.otp.FixedOtpInputStream;
+import hudson.plugins.erlangcover.otp.ModuleFilter;
 import hudson.plugins.erlangcover.renderers.SourceCodePainter;
 import hudson.plugins.erlangcover.renderers.SourceEncoding;
 import hudson.plugins.erlangcover.targets.CoverageMetric;
 import hudson.plugins.erlangcover.targets.CoverageResult;
+import hudson.plugins.erlangcover.targets.CoverageResultCodec;
 import hudson.plugins.erlangcover.targets.CoverageTarget;
 import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
@@ -26,10 +29,13 @@ import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -51,12 +57,29 @@ public class CoverPublisher extends Recorder {
     private CoverageTarget unhealthyTarget;
     private CoverageTarget failingTarget;
     private final SourceEncoding sourceEncoding;
+    /**
+     * Null for configurations saved before the option was introduced, raw data was always archived then.
+     */
+    private final Boolean archiveCoverData;
+    private final String includeModules;
+    private final String excludeModules;
+
+    public CoverPublisher(String coverFilePattern, boolean onlyStable, boolean failUnhealthy, boolean failUnstable, boolean autoUpdateHealth, boolean autoUpdateStability, SourceEncoding sourceEncoding) {
+        this(coverFilePattern, onlyStable, failUnhealthy, failUnstable, autoUpdateHealth, autoUpdateStability, sourceEncoding, true);
+    }
+
+    public CoverPublisher(String coverFilePattern, boolean onlyStable, boolean failUnhealthy, boolean failUnstable, boolean autoUpdateHealth, boolean autoUpdateStability, SourceEncoding sourceEncoding, boolean archiveCoverData) {
+        this(coverFilePattern, onlyStable, failUnhealthy, failUnstable, autoUpdateHealth, autoUpdateStability, sourceEncoding, archiveCoverData, null, null);
+    }
 
     /**
      * @param coverFilePattern the cover data file pattern
+     * @param archiveCoverData whether to copy raw cover data files into the build directory
+     * @param includeModules   patterns of the modules to report, all modules if blank
+     * @param excludeModules   patterns of the modules not to report
      */
     @DataBoundConstructor
-    public CoverPublisher(String coverFilePattern, boolean onlyStable, boolean failUnhealthy, boolean failUnstable, boolean autoUpdateHealth, boolean autoUpdateStability, SourceEncoding sourceEncoding) {
+    public CoverPublisher(String coverFilePattern, boolean onlyStable, boolean failUnhealthy, boolean failUnstable, boolean autoUpdateHealth, boolean autoUpdateStability, SourceEncoding sourceEncoding, boolean archiveCoverData, String includeModules, String excludeModules) {
         this.coverFilePattern = coverFilePattern;
         this.onlyStable = onlyStable;
         this.failUnhealthy = failUnhealthy;
@@ -64,6 +87,9 @@ public class CoverPublisher extends Recorder {
         this.autoUpdateHealth = autoUpdateHealth;
         this.autoUpdateStability = autoUpdateStability;
         this.sourceEncoding = sourceEncoding;
+        this.archiveCoverData = archiveCoverData;
+        this.includeModules = includeModules;
+        this.excludeModules = excludeModules;
         this.healthyTarget = new CoverageTarget();
         this.unhealthyTarget = new CoverageTarget();
         this.failingTarget = new CoverageTarget();
@@ -182,6 +208,33 @@ public class CoverPublisher extends Recorder {
         return autoUpdateStability;
     }
 
+    /**
+     * Getter for property 'archiveCoverData'.
+     *
+     * @return Value for property 'archiveCoverData'.
+     */
+    public boolean getArchiveCoverData() {
+        return archiveCoverData == null || archiveCoverData;
+    }
+
+    /**
+     * Getter for property 'includeModules'.
+     *
+     * @return Value for property 'includeModules'.
+     */
+    public String getIncludeModules() {
+        return includeModules;
+    }
+
+    /**
+     * Getter for property 'excludeModules'.
+     *
+     * @return Value for property 'excludeModules'.
+     */
+    public String getExcludeModules() {
+        return excludeModules;
+    }
+
     /**
      * Getter for property 'healthyTarget'.
      *
@@ -255,13 +308,13 @@ public class CoverPublisher extends Recorder {
         final File buildCoberturaDir = build.getRootDir();
         FilePath buildTarget = new FilePath(buildCoberturaDir);
 
-        FilePath[] reports = new FilePath[0];
+        ParsedCoverData parsed = null;
         try {
-            reports = moduleRoot.act(new CollectCoverFilesCallable(coverFilePattern));
+            parsed = moduleRoot.act(new ParseCoverFilesCallable(coverFilePattern, includeModules, excludeModules));
 
             // if the build has failed, then there's not
             // much point in reporting an error
-            if (build.getResult().isWorseOrEqualTo(Result.FAILURE) && reports.length == 0)
+            if (build.getResult().isWorseOrEqualTo(Result.FAILURE) && parsed.reports.length == 0)
                 return true;
 
         } catch (IOException e) {
@@ -270,7 +323,7 @@ public class CoverPublisher extends Recorder {
             build.setResult(Result.FAILURE);
         }
 
-        if (reports.length == 0) {
+        if (parsed == null || parsed.reports.length == 0) {
             String msg = "No coverage results were found using the pattern '"
                     + coverFilePattern + "' relative to '"
                     + moduleRoot.getRemote() + "'."
@@ -281,38 +334,44 @@ public class CoverPublisher extends Recorder {
             return true;
         }
 
-        for (int i = 0; i < reports.length; i++) {
-            final FilePath targetPath = new FilePath(buildTarget, "cover" + (i == 0 ? "" : i) + ".data");
-            try {
-                reports[i].copyTo(targetPath);
-            } catch (IOException e) {
-                Util.displayIOException(e, listener);
-                e.printStackTrace(listener.fatalError("Unable to copy cover data from " + reports[i] + " to " + buildTarget));
-                build.setResult(Result.FAILURE);
+        FilePath[] reports = parsed.reports;
+        if (getArchiveCoverData()) {
+            for (int i = 0; i < reports.length; i++) {
+                final FilePath targetPath = new FilePath(buildTarget, "cover" + (i == 0 ? "" : i) + ".data");
+                try {
+                    reports[i].copyTo(targetPath);
+                } catch (IOException e) {
+                    Util.displayIOException(e, listener);
+                    e.printStackTrace(listener.fatalError("Unable to copy cover data from " + reports[i] + " to " + buildTarget));
+                    build.setResult(Result.FAILURE);
+                }
             }
         }
 
         listener.getLogger().println("Publishing coverage results...");
-        Set<String> sourcePaths = new HashSet<String>();
+        for (Map.Entry<File, IOException> failure : parsed.failures.entrySet()) {
+            IOException e = failure.getValue();
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.fatalError("Unable to parse " + failure.getKey()));
+            build.setResult(Result.FAILURE);
+        }
+        Set<String> sourcePaths = parsed.sourcePaths;
         CoverageResult result = null;
-        for (File coverdata : getCoverData(build)) {
+        if (parsed.coverage != null) {
+            result = CoverageResultCodec.decode(ByteBuffer.wrap(parsed.coverage));
             try {
-                result = CoverCoverageParser.parse(coverdata, result, sourcePaths);
+                CoverageResultCodec.save(parsed.coverage, getCoverSnapshot(build));
             } catch (IOException e) {
                 Util.displayIOException(e, listener);
-                e.printStackTrace(listener.fatalError("Unable to parse " + coverdata));
+                e.printStackTrace(listener.fatalError("Unable to save coverage results to " + buildTarget));
                 build.setResult(Result.FAILURE);
             }
         }
         if (result != null) {
             listener.getLogger().println("Cover coverage report found.");
             result.setOwner(build);
-            final FilePath paintedSourcesPath = new FilePath(SourceCodePainter.paintedSourcesDirectory(build));
-            paintedSourcesPath.mkdirs();
-            SourceCodePainter painter = new SourceCodePainter(paintedSourcesPath, sourcePaths,
-                    result.getPaintedSources(), listener, getSourceEncoding());
-
-            moduleRoot.act(painter);
+            SourceCodePainter.paint(build, moduleRoot, sourcePaths, result.getPaintedSources(), listener,
+                    getSourceEncoding());
 
             final CoverBuildAction action = CoverBuildAction.load(build, result, healthyTarget,
                     unhealthyTarget, getOnlyStable(), getFailUnhealthy(), getFailUnstable(), getAutoUpdateHealth(), getAutoUpdateStability());
@@ -454,12 +513,12 @@ public class CoverPublisher extends Recorder {
                         throw new IOException(filePath + " is not a cover data file, please check your report pattern");
                     }
                     byte[] buf = new byte[size];
-                    if (in.read(buf) != buf.length) {
-                        throw new IOException(filePath + " is not a cover data file, please check your report pattern");
-                    }
+                    ByteStreams.readFully(in, buf);
                     OtpInputStream ein = new FixedOtpInputStream(buf);
                     // Read one term to verify file looks good
                     ein.read_any();
+                } catch (EOFException e) {
+                    throw new IOException(filePath + " is not a cover data file, please check your report pattern");
                 } catch (OtpErlangDecodeException e) {
                     throw new IOException(filePath + " is not a cover data file, please check your report pattern");
                 } finally {
@@ -470,6 +529,60 @@ public class CoverPublisher extends Recorder {
         }
     }
 
+    /**
+     * Cover data parsed on the node where the files are.
+     */
+    public static class ParsedCoverData implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final FilePath[] reports;
+        /**
+         * Coverage tree encoded by {@link CoverageResultCodec}, null if nothing was parsed.
+         */
+        final byte[] coverage;
+        final Set<String> sourcePaths;
+        final Map<File, IOException> failures;
+
+        ParsedCoverData(FilePath[] reports, byte[] coverage, Set<String> sourcePaths, Map<File, IOException> failures) {
+            this.reports = reports;
+            this.coverage = coverage;
+            this.sourcePaths = sourcePaths;
+            this.failures = failures;
+        }
+    }
+
+    /**
+     * Parses cover data files on the node, so only the compact coverage tree is sent back to the master.
+     */
+    public static class ParseCoverFilesCallable implements FilePath.FileCallable<ParsedCoverData> {
+        private static final long serialVersionUID = 1L;
+
+        private final String coverFilePattern;
+        private final String includeModules;
+        private final String excludeModules;
+
+        public ParseCoverFilesCallable(String coverFilePattern, String includeModules, String excludeModules) {
+            this.coverFilePattern = coverFilePattern;
+            this.includeModules = includeModules;
+            this.excludeModules = excludeModules;
+        }
+
+        public ParsedCoverData invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            FilePath[] reports = new CollectCoverFilesCallable(coverFilePattern).invoke(f, channel);
+            File[] files = new File[reports.length];
+            for (int i = 0; i < reports.length; i++) {
+                files[i] = new File(reports[i].getRemote());
+            }
+
+            Set<String> sourcePaths = new HashSet<String>();
+            Map<File, IOException> failures = new LinkedHashMap<File, IOException>();
+            ModuleFilter filter = ModuleFilter.create(includeModules, excludeModules);
+            CoverageResult result = files.length > 0 ? CoverCoverageParser.parse(files, filter, sourcePaths, failures) : null;
+            byte[] coverage = result != null ? CoverageResultCodec.encode(result) : null;
+            return new ParsedCoverData(reports, coverage, sourcePaths, failures);
+        }
+    }
+
     /**
      * Descriptor for {@link CoverPublisher}. Used as a singleton. The class is marked as public so that it can be
      * accessed from views.
@@ -558,6 +671,13 @@ public class CoverPublisher extends Recorder {
         return build.getRootDir().listFiles(CoverDataFilter.INSTANCE);
     }
 
+    /**
+     * Gets the coverage snapshot file, the report is loaded from it instead of the raw cover data.
+     */
+    public static File getCoverSnapshot(AbstractBuild<?, ?> build) {
+        return new File(build.getRootDir(), "coverage.snap");
+    }
+
     private enum CoverDataFilter implements FilenameFilter {
         INSTANCE;
 
@@ -0,0 +1,271 @@
+package hudson.plugins.erlangcover;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import hudson.plugins.erlangcover.targets.CoverageMetric;
+import hudson.util.ChartUtil;
+import hudson.util.ColorPalette;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import hudson.util.ShiftedCategoryAxis;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.renderer.category.LineAndShapeRenderer;
+import org.jfree.chart.title.LegendTitle;
+import org.jfree.data.category.CategoryDataset;
+import org.jfree.ui.RectangleEdge;
+import org.jfree.ui.RectangleInsets;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletResponse;
+import java.awt.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Graph of the coverage trend.
+ * <p/>
+ * Rendered images are cached by the digest of the trend and the image size, which also serves as the entity tag,
+ * so the graph of unchanged trend is neither rendered again nor sent again to the browser that already has it.
+ * Concurrent requests of the same graph are served by a single rendering. The cache size is set in megabytes with
+ * the <code>hudson.plugins.erlangcover.CoverageGraph.budget</code> system property, 8 by default.
+ *
+ * @author idubrov
+ */
+public final class CoverageGraph extends Graph {
+    private static final int DEFAULT_WIDTH = 500;
+    private static final int DEFAULT_HEIGHT = 200;
+    /**
+     * Largest width and height of the image, so a request cannot make the controller allocate a huge image.
+     */
+    private static final int MAX_SIZE = 2000;
+
+    private static final long BUDGET = Long.getLong(CoverageGraph.class.getName() + ".budget", 8) * 1024 * 1024;
+
+    private static final Cache<String, byte[]> IMAGES = CacheBuilder.newBuilder()
+            .maximumWeight(BUDGET)
+            .weigher(new Weigher<String, byte[]>() {
+                public int weigh(String key, byte[] value) {
+                    return value.length;
+                }
+            })
+            .build();
+
+    private final List<CoverageTrend.Entry> entries;
+    private final long timestamp;
+
+    /**
+     * @param entries builds of the trend in ascending order
+     */
+    CoverageGraph(List<CoverageTrend.Entry> entries) {
+        this(entries, getTimestamp(entries));
+    }
+
+    private CoverageGraph(List<CoverageTrend.Entry> entries, long timestamp) {
+        super(timestamp, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+        this.entries = entries;
+        this.timestamp = timestamp;
+    }
+
+    private static long getTimestamp(List<CoverageTrend.Entry> entries) {
+        long timestamp = 0;
+        for (CoverageTrend.Entry entry : entries) {
+            timestamp = Math.max(timestamp, entry.getTimestamp());
+        }
+        return timestamp;
+    }
+
+    @Override
+    public void doPng(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        final int width = getSize(req, "width", DEFAULT_WIDTH);
+        final int height = getSize(req, "height", DEFAULT_HEIGHT);
+        String tag = '"' + digest(width, height) + '"';
+
+        rsp.setHeader("ETag", tag);
+        rsp.setDateHeader("Last-Modified", timestamp);
+        String match = req.getHeader("If-None-Match");
+        long since = req.getDateHeader("If-Modified-Since");
+        // entity tag takes precedence, deleted builds change the trend but not its timestamp
+        if (match != null ? match.equals(tag) : since >= 0 && timestamp / 1000 <= since / 1000) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] image;
+        try {
+            image = IMAGES.get(tag, new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    return render(width, height);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (ExecutionError e) {
+            // same as Graph, for the controller without fonts
+            String message = e.getCause().getMessage();
+            if (message != null && message.contains("Probable fatal error:No fonts found")) {
+                rsp.sendRedirect2(req.getContextPath() + "/images/headless.png");
+                return;
+            }
+            throw (Error) e.getCause();
+        }
+
+        rsp.setContentType("image/png");
+        rsp.setContentLength(image.length);
+        OutputStream out = rsp.getOutputStream();
+        try {
+            out.write(image);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Gets the image size from the request, bounded by {@link #MAX_SIZE}.
+     */
+    private static int getSize(StaplerRequest req, String name, int defaultSize) {
+        String size = req.getParameter(name);
+        if (size == null) {
+            return defaultSize;
+        }
+        try {
+            return Math.max(1, Math.min(MAX_SIZE, Integer.parseInt(size)));
+        } catch (NumberFormatException e) {
+            return defaultSize;
+        }
+    }
+
+    /**
+     * Digest of everything the image depends on.
+     */
+    private String digest(int width, int height) {
+        Hasher hasher = Hashing.md5().newHasher();
+        hasher.putInt(width).putInt(height);
+        for (CoverageTrend.Entry entry : entries) {
+            hasher.putInt(entry.getNumber());
+            for (Map.Entry<CoverageMetric, Ratio> value : entry.getResults().entrySet()) {
+                hasher.putInt(value.getKey().ordinal());
+                hasher.putInt(value.getValue().numerator).putInt(value.getValue().denominator);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    private byte[] render(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(createGraph().createBufferedImage(width, height), "PNG", out);
+        return out.toByteArray();
+    }
+
+    @Override
+    protected JFreeChart createGraph() {
+        DataSetBuilder<String, BuildNumberLabel> dsb = new DataSetBuilder<String, BuildNumberLabel>();
+        for (CoverageTrend.Entry entry : entries) {
+            BuildNumberLabel label = new BuildNumberLabel(entry.getNumber());
+            for (Map.Entry<CoverageMetric, Ratio> value : entry.getResults().entrySet()) {
+                dsb.add(value.getValue().getPercentageFloat(), value.getKey().getDisplayName(), label);
+            }
+        }
+        return createChart(dsb.build());
+    }
+
+    /**
+     * Label of the build in the trend graph, unlike {@link ChartUtil.NumberOnlyBuildLabel} does not need the build.
+     */
+    private static final class BuildNumberLabel implements Comparable<BuildNumberLabel> {
+        private final int number;
+
+        BuildNumberLabel(int number) {
+            this.number = number;
+        }
+
+        public int compareTo(BuildNumberLabel that) {
+            return number < that.number ? -1 : (number == that.number ? 0 : 1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BuildNumberLabel && ((BuildNumberLabel) o).number == number;
+        }
+
+        @Override
+        public int hashCode() {
+            return number;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + number;
+        }
+    }
+
+    private static JFreeChart createChart(CategoryDataset dataset) {
+
+        final JFreeChart chart = ChartFactory.createLineChart(
+                null,                   // chart title
+                null,                   // unused
+                "%",                    // range axis label
+                dataset,                  // data
+                PlotOrientation.VERTICAL, // orientation
+                true,                     // include legend
+                true,                     // tooltips
+                false                     // urls
+        );
+
+        // NOW DO SOME OPTIONAL CUSTOMISATION OF THE CHART...
+
+        final LegendTitle legend = chart.getLegend();
+        legend.setPosition(RectangleEdge.RIGHT);
+
+        chart.setBackgroundPaint(Color.white);
+
+        final CategoryPlot plot = chart.getCategoryPlot();
+
+        // plot.setAxisOffset(new Spacer(Spacer.ABSOLUTE, 5.0, 5.0, 5.0, 5.0));
+        plot.setBackgroundPaint(Color.WHITE);
+        plot.setOutlinePaint(null);
+        plot.setRangeGridlinesVisible(true);
+        plot.setRangeGridlinePaint(Color.black);
+
+        CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+        plot.setDomainAxis(domainAxis);
+        domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+        domainAxis.setLowerMargin(0.0);
+        domainAxis.setUpperMargin(0.0);
+        domainAxis.setCategoryMargin(0.0);
+
+        final NumberAxis rangeAxis = (NumberAxis) plot.getRangeAxis();
+        rangeAxis.setStandardTickUnits(NumberAxis.createIntegerTickUnits());
+        rangeAxis.setUpperBound(100);
+        rangeAxis.setLowerBound(0);
+
+        final LineAndShapeRenderer renderer = (LineAndShapeRenderer) plot.getRenderer();
+        renderer.setBaseStroke(new BasicStroke(2.0f));
+        ColorPalette.apply(renderer);
+
+        // crop extra space around the graph
+        plot.setInsets(new RectangleInsets(5.0, 0, 0, 5.0));
+
+        return chart;
+    }
+}
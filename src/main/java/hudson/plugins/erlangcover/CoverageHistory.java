@@ -0,0 +1,563 @@
+package hudson.plugins.erlangcover;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.ByteStreams;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.plugins.erlangcover.targets.CoverageMetric;
+import hudson.plugins.erlangcover.targets.CoverageResult;
+import hudson.plugins.erlangcover.targets.CoverageResultCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coverage history of the modules of a job, kept in a single append-only file in the job directory, so the module
+ * trend is read without loading previous coverage results.
+ * <p/>
+ * File starts with magic, version and number of metrics, followed by records of two kinds: module name, which gets
+ * the next module id, and build: build number, module count and fixed-size module records sorted by module id
+ * (module id, metric mask, numerator and denominator of every metric). Later record of the same build replaces the
+ * earlier one. Module ids by name and build records by number are indexed in memory, so the coverage of a module in
+ * a build is found by a binary search in the build record, which usually hits on the first probe since modules keep
+ * their positions from build to build.
+ * <p/>
+ * Deleted builds are dropped by the job trend; once their records and the replaced ones are as large as the records
+ * of the live builds, the file is compacted in background. History of the job without the file is collected in
+ * background from the coverage snapshots of the builds in the job trend, builds recorded before the snapshots were
+ * introduced are left out.
+ *
+ * @author idubrov
+ */
+final class CoverageHistory {
+    private static final int MAGIC = 0x45434849; // "ECHI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 9;
+
+    private static final int NAME_RECORD = 1;
+    private static final int BUILD_RECORD = 2;
+    private static final int BUILD_HEADER_SIZE = 1 + 4 + 4;
+
+    private static final CoverageMetric[] METRICS = CoverageMetric.values();
+    private static final int MODULE_SIZE = 4 + 1 + METRICS.length * 8;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Histories read so far, by history file.
+     */
+    private static final Cache<File, CoverageHistory> HISTORIES = CacheBuilder.newBuilder().softValues().build();
+
+    private final File file;
+    /**
+     * Length of the file read so far, records past it are not indexed yet.
+     */
+    private long length;
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<String> names = new ArrayList<String>();
+    private final SortedMap<Integer, Block> blocks = new TreeMap<Integer, Block>();
+    /**
+     * Size of the build records replaced by later ones.
+     */
+    private long replaced;
+    /**
+     * Builds completed while the history is collected, written after the collected ones; <code>null</code> unless
+     * the history is being collected.
+     */
+    private SortedMap<Integer, Map<String, Map<CoverageMetric, Ratio>>> pending;
+    private boolean compacting;
+
+    /**
+     * Module records of a build.
+     */
+    private static final class Block {
+        /**
+         * Offset of the first module record.
+         */
+        private final long offset;
+        private final int count;
+
+        Block(long offset, int count) {
+            this.offset = offset;
+            this.count = count;
+        }
+
+        long getSize() {
+            return BUILD_HEADER_SIZE + (long) count * MODULE_SIZE;
+        }
+    }
+
+    CoverageHistory(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Gets the history of the job, starts collecting it if there is none.
+     */
+    static CoverageHistory get(AbstractProject<?, ?> project) {
+        File file = new File(project.getRootDir(), "erlangcover-history.dat");
+        CoverageHistory history;
+        synchronized (HISTORIES) {
+            history = HISTORIES.getIfPresent(file);
+            if (history == null) {
+                history = new CoverageHistory(file);
+                HISTORIES.put(file, history);
+            }
+        }
+        history.collectIfMissing(project);
+        return history;
+    }
+
+    /**
+     * Gets the coverage of the module in the given builds of the job trend.
+     *
+     * @return entries of the builds with the module
+     */
+    synchronized List<CoverageTrend.Entry> getEntries(List<CoverageTrend.Entry> builds, String module) {
+        List<CoverageTrend.Entry> result = new ArrayList<CoverageTrend.Entry>();
+        if (pending != null) {
+            for (CoverageTrend.Entry build : builds) {
+                Map<String, Map<CoverageMetric, Ratio>> modules = pending.get(build.getNumber());
+                Map<CoverageMetric, Ratio> results = modules == null ? null : modules.get(module);
+                if (results != null) {
+                    result.add(build.withResults(results));
+                }
+            }
+            return result;
+        }
+
+        read();
+        Integer id = ids.get(module);
+        if (id == null) {
+            return result;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer record = ByteBuffer.allocate(MODULE_SIZE);
+                int hint = 0;
+                for (CoverageTrend.Entry build : builds) {
+                    Block block = blocks.get(build.getNumber());
+                    int slot = block == null ? -1 : find(channel, block, id, hint, record);
+                    if (slot >= 0) {
+                        hint = slot;
+                        result.add(build.withResults(readResults(record)));
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read " + file, e);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the record of the module in the build, probing the hinted slot first.
+     *
+     * @param record receives the found record, positioned after the module id
+     * @return slot of the module or <code>-1</code> if the build has no such module
+     */
+    private static int find(FileChannel channel, Block block, int id, int hint, ByteBuffer record)
+            throws IOException {
+        int low = 0;
+        int high = block.count - 1;
+        int slot = Math.min(hint, high);
+        while (low <= high) {
+            record.clear();
+            read(channel, block.offset + (long) slot * MODULE_SIZE, record);
+            int slotId = record.getInt();
+            if (slotId == id) {
+                return slot;
+            } else if (slotId < id) {
+                low = slot + 1;
+            } else {
+                high = slot - 1;
+            }
+            slot = (low + high) >>> 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Fills the remaining space of the buffer and flips it.
+     */
+    private static void read(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("Coverage history is truncated");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static Map<CoverageMetric, Ratio> readResults(ByteBuffer in) {
+        int mask = in.get();
+        Map<CoverageMetric, Ratio> results = new EnumMap<CoverageMetric, Ratio>(CoverageMetric.class);
+        for (CoverageMetric metric : METRICS) {
+            int numerator = in.getInt();
+            int denominator = in.getInt();
+            if ((mask & (1 << metric.ordinal())) != 0) {
+                results.put(metric, Ratio.create(numerator, denominator));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Indexes the records appended since the last read. Record left partially written by a crash is not indexed
+     * and is overwritten by the next append.
+     */
+    private void read() {
+        try {
+            long fileLength = file.length();
+            if (fileLength <= length) {
+                return;
+            }
+            FileInputStream stream = new FileInputStream(file);
+            try {
+                stream.getChannel().position(length);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+                long position = length;
+                if (position == 0) {
+                    if (in.readInt() != MAGIC || in.readByte() != VERSION || in.readInt() != METRICS.length) {
+                        throw new IOException("Not a coverage history");
+                    }
+                    position = length = HEADER_SIZE;
+                }
+                while (position < fileLength) {
+                    int type = in.readByte();
+                    if (type == NAME_RECORD) {
+                        byte[] name = new byte[in.readUnsignedShort()];
+                        in.readFully(name);
+                        String module = new String(name, UTF8);
+                        ids.put(module, names.size());
+                        names.add(module);
+                        position += 3 + name.length;
+                    } else if (type == BUILD_RECORD) {
+                        int number = in.readInt();
+                        Block block = new Block(position + BUILD_HEADER_SIZE, in.readInt());
+                        if (position + block.getSize() > fileLength) {
+                            break;
+                        }
+                        ByteStreams.skipFully(in, block.getSize() - BUILD_HEADER_SIZE);
+                        Block previous = blocks.put(number, block);
+                        if (previous != null) {
+                            replaced += previous.getSize();
+                        }
+                        position += block.getSize();
+                    } else {
+                        throw new IOException("Coverage history is corrupted at " + position);
+                    }
+                    length = position;
+                }
+            } catch (EOFException e) {
+                // partially written record
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read " + file, e);
+        }
+    }
+
+    /**
+     * Appends the coverage of the modules of the build.
+     */
+    synchronized void append(int number, Map<String, Map<CoverageMetric, Ratio>> modules) {
+        if (pending != null) {
+            pending.put(number, modules);
+            return;
+        }
+        read();
+        try {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            encode(new DataOutputStream(records), number, modules, ids, new HashMap<String, Integer>());
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (length == 0) {
+                    raf.setLength(0);
+                    writeHeader(raf);
+                    length = HEADER_SIZE;
+                }
+                // drop the record left partially written by a crash
+                raf.setLength(length);
+                raf.seek(length);
+                raf.write(records.toByteArray());
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write " + file, e);
+        }
+    }
+
+    /**
+     * Encodes the coverage of the build, preceded by the records of the module names not indexed yet. New names get
+     * the ids following the indexed ones and are added to <code>added</code>.
+     */
+    private static void encode(DataOutputStream out, int number, Map<String, Map<CoverageMetric, Ratio>> modules,
+                               Map<String, Integer> ids, Map<String, Integer> added) throws IOException {
+        SortedMap<Integer, Map<CoverageMetric, Ratio>> records = new TreeMap<Integer, Map<CoverageMetric, Ratio>>();
+        for (Map.Entry<String, Map<CoverageMetric, Ratio>> module : modules.entrySet()) {
+            String name = module.getKey();
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = added.get(name);
+            }
+            if (id == null) {
+                id = ids.size() + added.size();
+                added.put(name, id);
+                byte[] bytes = name.getBytes(UTF8);
+                out.writeByte(NAME_RECORD);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+            records.put(id, module.getValue());
+        }
+        out.writeByte(BUILD_RECORD);
+        out.writeInt(number);
+        out.writeInt(records.size());
+        for (Map.Entry<Integer, Map<CoverageMetric, Ratio>> record : records.entrySet()) {
+            out.writeInt(record.getKey());
+            int mask = 0;
+            for (CoverageMetric metric : record.getValue().keySet()) {
+                mask |= 1 << metric.ordinal();
+            }
+            out.writeByte(mask);
+            for (CoverageMetric metric : METRICS) {
+                Ratio ratio = record.getValue().get(metric);
+                out.writeInt(ratio == null ? 0 : ratio.numerator);
+                out.writeInt(ratio == null ? 0 : ratio.denominator);
+            }
+        }
+    }
+
+    private static void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(METRICS.length);
+    }
+
+    /**
+     * Gets the coverage of the modules of the build. Reads only the module summaries.
+     */
+    static Map<String, Map<CoverageMetric, Ratio>> getModules(CoverageResult root) {
+        Map<String, Map<CoverageMetric, Ratio>> modules = new LinkedHashMap<String, Map<CoverageMetric, Ratio>>();
+        for (CoverageResult module : root.getChildrenReal().values()) {
+            modules.put(module.getName(), module.getResults());
+        }
+        return modules;
+    }
+
+    private synchronized void collectIfMissing(final AbstractProject<?, ?> project) {
+        if (pending == null && !compacting && !file.exists()) {
+            pending = new TreeMap<Integer, Map<String, Map<CoverageMetric, Ratio>>>();
+            CoverageTrend.COLLECTOR.execute(new Runnable() {
+                public void run() {
+                    collect(project);
+                }
+            });
+        }
+    }
+
+    /**
+     * Collects the history from the coverage snapshots of the builds in the job trend without holding any lock,
+     * then writes the builds completed meanwhile after the collected ones. Snapshots are read without loading the
+     * modules and without caching the results.
+     */
+    private void collect(AbstractProject<?, ?> project) {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Map<String, Integer> added = new HashMap<String, Integer>();
+        Map<String, Integer> none = Collections.emptyMap();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                writeHeader(out);
+                for (int number : CoverageTrend.getBuilds(project)) {
+                    AbstractBuild<?, ?> build = project.getBuildByNumber(number);
+                    File snapshot = build == null ? null : CoverPublisher.getCoverSnapshot(build);
+                    if (snapshot == null || !snapshot.exists()) {
+                        continue;
+                    }
+                    try {
+                        encode(out, number, getModules(CoverageResultCodec.load(snapshot)), none, added);
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Failed to read " + snapshot, e);
+                    }
+                }
+                synchronized (this) {
+                    for (Map.Entry<Integer, Map<String, Map<CoverageMetric, Ratio>>> build : pending.entrySet()) {
+                        encode(out, build.getKey(), build.getValue(), none, added);
+                    }
+                    out.close();
+                    rename(temp, file);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // the history is collected again on the next access
+            logger.log(Level.WARNING, "Failed to write " + file, e);
+            temp.delete();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to collect the coverage history of " + project.getFullName(), e);
+            temp.delete();
+        } finally {
+            synchronized (this) {
+                pending = null;
+                reset();
+            }
+        }
+    }
+
+    /**
+     * Starts compacting the history in background, see {@link #compact(Set)}.
+     */
+    synchronized void compactIfNeeded(final AbstractProject<?, ?> project) {
+        if (pending == null && !compacting && file.exists()) {
+            compacting = true;
+            CoverageTrend.COLLECTOR.execute(new Runnable() {
+                public void run() {
+                    try {
+                        compact(CoverageTrend.getBuilds(project));
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Failed to compact " + file, e);
+                    } finally {
+                        synchronized (CoverageHistory.this) {
+                            compacting = false;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Compacts the history if the records of the deleted builds and the replaced records are as large as the records
+     * of the live builds. Copies the names and the records of the live builds to a new file without holding the lock,
+     * then copies the records appended meanwhile as they are, since they use the same module ids.
+     *
+     * @param live builds in the job trend
+     */
+    void compact(Set<Integer> live) throws IOException {
+        List<String> liveNames;
+        SortedMap<Integer, Block> liveBlocks = new TreeMap<Integer, Block>();
+        long end;
+        synchronized (this) {
+            read();
+            long garbage = replaced;
+            long used = 0;
+            for (Map.Entry<Integer, Block> block : blocks.entrySet()) {
+                if (live.contains(block.getKey())) {
+                    liveBlocks.put(block.getKey(), block.getValue());
+                    used += block.getValue().getSize();
+                } else {
+                    garbage += block.getValue().getSize();
+                }
+            }
+            if (garbage == 0 || garbage < used) {
+                return;
+            }
+            liveNames = new ArrayList<String>(names);
+            end = length;
+        }
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                writeHeader(out);
+                for (String name : liveNames) {
+                    byte[] bytes = name.getBytes(UTF8);
+                    out.writeByte(NAME_RECORD);
+                    out.writeShort(bytes.length);
+                    out.write(bytes);
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                for (Map.Entry<Integer, Block> block : liveBlocks.entrySet()) {
+                    out.writeByte(BUILD_RECORD);
+                    out.writeInt(block.getKey());
+                    out.writeInt(block.getValue().count);
+                    copy(channel, block.getValue().offset, (long) block.getValue().count * MODULE_SIZE, out, buffer);
+                }
+                synchronized (this) {
+                    read();
+                    copy(channel, end, length - end, out, buffer);
+                    out.close();
+                    rename(temp, file);
+                    reset();
+                }
+            } finally {
+                out.close();
+                temp.delete();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void copy(FileChannel channel, long position, long count, DataOutputStream out, ByteBuffer buffer)
+            throws IOException {
+        while (count > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count));
+            read(channel, position, buffer);
+            out.write(buffer.array(), 0, buffer.limit());
+            position += buffer.limit();
+            count -= buffer.limit();
+        }
+    }
+
+    private static void rename(File temp, File file) throws IOException {
+        if (!temp.renameTo(file)) {
+            // Windows cannot rename over an existing file
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Unable to save " + file);
+            }
+        }
+    }
+
+    /**
+     * Drops the index, so the file is indexed again on the next read.
+     */
+    private void reset() {
+        length = 0;
+        ids.clear();
+        names.clear();
+        blocks.clear();
+        replaced = 0;
+    }
+
+    private static final Logger logger = Logger.getLogger(CoverageHistory.class.getName());
+}
@@ -0,0 +1,231 @@
+package hudson.plugins.erlangcover;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Item;
+import hudson.model.PeriodicWork;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.erlangcover.targets.CoverageResult;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coverage results of all builds loaded on this controller.
+ * <p/>
+ * Results are kept by build directory and evicted least recently used first, once their estimated size
+ * exceeds the budget. Subtrees of the results loaded from a snapshot count as they are loaded. The budget is set
+ * in megabytes with the <code>hudson.plugins.erlangcover.CoverageResultCache.budget</code> system property, 64 by
+ * default. Results larger than the whole budget would evict all the others and then themselves, so they are kept
+ * softly referenced instead, out of the budget. Results of deleted builds and of deleted or renamed jobs are
+ * dropped. Hit, miss, eviction and load time counters are logged periodically at the FINE level.
+ *
+ * @author idubrov
+ */
+public final class CoverageResultCache {
+    private static final long BUDGET =
+            Long.getLong(CoverageResultCache.class.getName() + ".budget", 64) * 1024 * 1024;
+
+    private static final Cache<File, CoverageResult> CACHE = CacheBuilder.newBuilder()
+            // single segment, so a result may take the whole budget rather than the budget of a segment
+            .concurrencyLevel(1)
+            .maximumWeight(BUDGET)
+            .weigher(new Weigher<File, CoverageResult>() {
+                public int weigh(File key, CoverageResult value) {
+                    return (int) Math.min(Integer.MAX_VALUE, value.getEstimatedSize());
+                }
+            })
+            .build();
+
+    /**
+     * Results larger than the budget.
+     */
+    private static final Cache<File, CoverageResult> OVERSIZED = CacheBuilder.newBuilder().softValues().build();
+
+    /**
+     * Do not instantiate CoverageResultCache.
+     */
+    private CoverageResultCache() {
+    }
+
+    /**
+     * Gets the result of the build, loading it if it is not cached. Concurrent loads of the same build are
+     * served by a single load.
+     *
+     * @param loader loads the result, may return <code>null</code> if the build has no result
+     * @return the result or <code>null</code> if loader returned none
+     */
+    static CoverageResult get(AbstractBuild<?, ?> build, final Callable<CoverageResult> loader) {
+        final File key = build.getRootDir();
+        CoverageResult oversized = OVERSIZED.getIfPresent(key);
+        if (oversized != null) {
+            return oversized;
+        }
+        final CoverageResult[] loaded = new CoverageResult[1];
+        try {
+            return CACHE.get(key, new Callable<CoverageResult>() {
+                public CoverageResult call() throws Exception {
+                    CoverageResult result = loader.call();
+                    if (result != null) {
+                        reweighOnResize(key, result);
+                        if (result.getEstimatedSize() > BUDGET) {
+                            loaded[0] = result;
+                            OVERSIZED.put(key, result);
+                            return null;
+                        }
+                    }
+                    return result;
+                }
+            });
+        } catch (InvalidCacheLoadException e) {
+            // loader returned null or an oversized result, nothing to cache
+            return loaded[0] != null ? loaded[0] : OVERSIZED.getIfPresent(key);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    static void put(AbstractBuild<?, ?> build, CoverageResult result) {
+        File key = build.getRootDir();
+        reweighOnResize(key, result);
+        if (result.getEstimatedSize() > BUDGET) {
+            CACHE.invalidate(key);
+            OVERSIZED.put(key, result);
+        } else {
+            OVERSIZED.invalidate(key);
+            CACHE.put(key, result);
+        }
+    }
+
+    /**
+     * Entries are weighed when they are put, so the result is put again once it grows, to weigh it again and evict
+     * other results if it no longer fits the budget. Nothing is put if the result was evicted meanwhile. The result
+     * that outgrows the whole budget moves to {@link #OVERSIZED}.
+     */
+    private static void reweighOnResize(final File key, final CoverageResult result) {
+        result.setResizeListener(new Runnable() {
+            public void run() {
+                if (result.getEstimatedSize() <= BUDGET) {
+                    CACHE.asMap().replace(key, result, result);
+                } else if (CACHE.asMap().remove(key, result)) {
+                    OVERSIZED.put(key, result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Getter for property 'stats'.
+     *
+     * @return Hit, miss, eviction and load time counters of the cache.
+     */
+    public static CacheStats getStats() {
+        return CACHE.stats();
+    }
+
+    /**
+     * Getter for property 'size'.
+     *
+     * @return Number of cached results.
+     */
+    public static long getSize() {
+        return CACHE.size();
+    }
+
+    /**
+     * Describes the cache counters, for the log.
+     */
+    static String getReport() {
+        long weight = 0;
+        for (CoverageResult result : CACHE.asMap().values()) {
+            weight += result.getEstimatedSize();
+        }
+        CacheStats stats = getStats();
+        return String.format("Coverage result cache: %d results, %.1f of %d MB, %d hits, %d misses, %d evictions, "
+                + "%.1f ms average load; %d oversized results, %d hits", getSize(), weight / (1024.0 * 1024.0),
+                BUDGET / (1024 * 1024), stats.hitCount(), stats.missCount(), stats.evictionCount(),
+                stats.averageLoadPenalty() / 1e6, OVERSIZED.size(), OVERSIZED.stats().hitCount());
+    }
+
+    /**
+     * Drops the results of the job, whose builds are deleted or moved to another directory.
+     */
+    private static void invalidate(Item job) {
+        for (Cache<File, CoverageResult> cache : Arrays.asList(CACHE, OVERSIZED)) {
+            Iterator<CoverageResult> i = cache.asMap().values().iterator();
+            while (i.hasNext()) {
+                AbstractBuild<?, ?> owner = i.next().getOwner();
+                if (owner == null || owner.getParent() == job) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs the cache counters every 10 minutes, at the FINE level of the logger of {@link CoverageResultCache}.
+     */
+    @Extension
+    public static final class ReportWork extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return 10 * MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            if (CoverageResultCache.logger.isLoggable(Level.FINE)) {
+                CoverageResultCache.logger.fine(getReport());
+            }
+        }
+    }
+
+    /**
+     * Drops the results of the deleted builds, so a build made later in the same directory does not get them.
+     */
+    @Extension
+    public static final class BuildListener extends RunListener<AbstractBuild> {
+        public BuildListener() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onDeleted(AbstractBuild build) {
+            CACHE.invalidate(build.getRootDir());
+            OVERSIZED.invalidate(build.getRootDir());
+        }
+    }
+
+    /**
+     * Drops the results of the deleted and renamed jobs.
+     */
+    @Extension
+    public static final class JobListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            invalidate(item);
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            invalidate(item);
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(CoverageResultCache.class.getName());
+}
@@ -0,0 +1,491 @@
+package hudson.plugins.erlangcover;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.erlangcover.targets.CoverageMetric;
+import hudson.plugins.erlangcover.targets.CoverageResult;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coverage trend of a job, kept in an append-only file in the job directory, so trend graphs and the job page do not
+ * load the builds.
+ * <p/>
+ * File starts with magic, version and number of metrics, followed by fixed-size records, one per completed build
+ * with coverage: build number, timestamp, build result, flags, metric mask, numerator and denominator of every
+ * metric. Later record of the same build replaces the earlier one, deleted builds are recorded with the deleted
+ * flag. Trend of the job without the file is collected from its builds once, in background; until then the trend
+ * has only the builds completed or deleted meanwhile.
+ * <p/>
+ * Module trend is read from the {@link CoverageHistory} of the job. Function trend loads the results of the last
+ * builds listed in the module history, as many as set with the
+ * <code>hudson.plugins.erlangcover.CoverageTrend.functionWindow</code> system property, 10 by default.
+ *
+ * @author idubrov
+ */
+public final class CoverageTrend {
+    private static final int MAGIC = 0x45435452; // "ECTR"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 9;
+
+    private static final int FLAG_ONLY_STABLE = 1;
+    private static final int FLAG_DELETED = 2;
+
+    private static final CoverageMetric[] METRICS = CoverageMetric.values();
+    private static final int RECORD_SIZE = 4 + 8 + 1 + 1 + 1 + METRICS.length * 8;
+
+    /**
+     * Maximum number of builds in the function trend, each of them loads the coverage result of the build.
+     */
+    private static final int FUNCTION_WINDOW = Math.max(1, Integer.getInteger(
+            CoverageTrend.class.getName() + ".functionWindow", 10));
+
+    private static final Result[] RESULTS = {Result.SUCCESS, Result.UNSTABLE, Result.FAILURE, Result.NOT_BUILT,
+            Result.ABORTED};
+
+    /**
+     * Trends read so far, by trend file.
+     */
+    private static final Cache<File, CoverageTrend> TRENDS = CacheBuilder.newBuilder().softValues().build();
+
+    /**
+     * Collects the trends and the module histories of the jobs without them, one job at a time.
+     */
+    static final ThreadPoolExecutor COLLECTOR = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ExceptionCatchingThreadFactory(new DaemonThreadFactory()));
+
+    static {
+        COLLECTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final File file;
+    /**
+     * Length of the file read so far.
+     */
+    private long length;
+    private final SortedMap<Integer, Entry> entries = new TreeMap<Integer, Entry>();
+    /**
+     * Copy of the entries as of the last read, shared by the readers.
+     */
+    private SortedMap<Integer, Entry> snapshot = Collections.unmodifiableSortedMap(new TreeMap<Integer, Entry>());
+    /**
+     * Records appended while the trend is collected, written after the collected ones; <code>null</code> unless the
+     * trend is being collected.
+     */
+    private ByteArrayOutputStream pending;
+
+    /**
+     * Coverage of a single build.
+     */
+    public static final class Entry {
+        private final int number;
+        private final long timestamp;
+        private final Result result;
+        private final boolean onlyStable;
+        private final Map<CoverageMetric, Ratio> results;
+
+        Entry(int number, long timestamp, Result result, boolean onlyStable, Map<CoverageMetric, Ratio> results) {
+            this.number = number;
+            this.timestamp = timestamp;
+            this.result = result;
+            this.onlyStable = onlyStable;
+            this.results = results;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Result getResult() {
+            return result;
+        }
+
+        public Set<CoverageMetric> getMetrics() {
+            return results.keySet();
+        }
+
+        public Ratio getCoverage(CoverageMetric metric) {
+            return results.get(metric);
+        }
+
+        public Map<CoverageMetric, Ratio> getResults() {
+            return Collections.unmodifiableMap(results);
+        }
+
+        /**
+         * Creates the entry of the same build with other coverage, for the trend of a module or a function.
+         */
+        Entry withResults(Map<CoverageMetric, Ratio> results) {
+            return new Entry(number, timestamp, result, onlyStable, results);
+        }
+
+        /**
+         * Whether the build counts in the trend, see {@link CoverBuildAction#getPreviousResult()}.
+         */
+        boolean isConsidered() {
+            return result != Result.FAILURE && !(onlyStable && result != Result.SUCCESS);
+        }
+    }
+
+    private CoverageTrend(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Gets the builds of the job that count in the trend up to the given build, in ascending order. The given build
+     * is included even if it does not count.
+     *
+     * @param number last build number
+     */
+    public static List<Entry> getEntries(AbstractProject<?, ?> project, int number) {
+        List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : get(project).read().headMap(number + 1).values()) {
+            if (entry.number == number || entry.isConsidered()) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the last build of the job that counts in the trend and is not newer than the given one.
+     *
+     * @param stableOnly only stable build counts
+     * @return the entry or <code>null</code> if there is none
+     */
+    public static Entry getLastEntry(AbstractProject<?, ?> project, int number, boolean stableOnly) {
+        SortedMap<Integer, Entry> entries = get(project).read().headMap(number + 1);
+        while (!entries.isEmpty()) {
+            Entry entry = entries.get(entries.lastKey());
+            Result threshold = stableOnly ? Result.SUCCESS : Result.UNSTABLE;
+            if (entry.isConsidered() && entry.result.isBetterOrEqualTo(threshold)) {
+                return entry;
+            }
+            entries = entries.headMap(entry.number);
+        }
+        return null;
+    }
+
+    /**
+     * Gets the builds of the job that count in the trend up to the given build, with the coverage of the module.
+     *
+     * @param module module name
+     * @param number last build number
+     */
+    public static List<Entry> getEntries(AbstractProject<?, ?> project, String module, int number) {
+        return CoverageHistory.get(project).getEntries(getEntries(project, number), module);
+    }
+
+    /**
+     * Gets the last builds of the job that count in the trend up to the given build, with the coverage of the
+     * function. Loads the results of at most {@link #FUNCTION_WINDOW} builds listed in the module history.
+     *
+     * @param module   module name
+     * @param function function name
+     * @param number   last build number
+     */
+    public static List<Entry> getEntries(AbstractProject<?, ?> project, String module, String function, int number) {
+        List<Entry> entries = getEntries(project, module, number);
+        List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : entries.subList(Math.max(0, entries.size() - FUNCTION_WINDOW), entries.size())) {
+            AbstractBuild<?, ?> build = project.getBuildByNumber(entry.number);
+            CoverBuildAction action = build == null ? null : build.getAction(CoverBuildAction.class);
+            CoverageResult root = action == null ? null : action.getResult();
+            CoverageResult parent = root == null ? null : root.getChild(module);
+            CoverageResult child = parent == null ? null : parent.getChild(function);
+            if (child != null) {
+                result.add(entry.withResults(child.getResults()));
+            }
+        }
+        return result;
+    }
+
+    private static CoverageTrend get(AbstractProject<?, ?> project) {
+        CoverageTrend trend = get(new File(project.getRootDir(), "erlangcover-trend.dat"));
+        trend.collectIfMissing(project);
+        return trend;
+    }
+
+    /**
+     * Gets the numbers of the builds of the job with coverage, whether they count in the trend or not.
+     */
+    static Set<Integer> getBuilds(AbstractProject<?, ?> project) {
+        return get(project).read().keySet();
+    }
+
+    private static CoverageTrend get(File file) {
+        synchronized (TRENDS) {
+            CoverageTrend trend = TRENDS.getIfPresent(file);
+            if (trend == null) {
+                trend = new CoverageTrend(file);
+                TRENDS.put(file, trend);
+            }
+            return trend;
+        }
+    }
+
+    /**
+     * Reads the records appended since the last read.
+     *
+     * @return entries by build number
+     */
+    private synchronized SortedMap<Integer, Entry> read() {
+        try {
+            long fileLength = file.length();
+            if (fileLength > length) {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    if (length == 0) {
+                        readHeader(raf);
+                        length = HEADER_SIZE;
+                    }
+                    int count = (int) ((fileLength - length) / RECORD_SIZE);
+                    byte[] records = new byte[count * RECORD_SIZE];
+                    raf.seek(length);
+                    raf.readFully(records);
+                    ByteBuffer in = ByteBuffer.wrap(records);
+                    for (int i = 0; i < count; i++) {
+                        readRecord(in);
+                    }
+                    length += records.length;
+                    snapshot = Collections.unmodifiableSortedMap(new TreeMap<Integer, Entry>(entries));
+                } finally {
+                    raf.close();
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read " + file, e);
+        }
+        return snapshot;
+    }
+
+    private void readHeader(RandomAccessFile raf) throws IOException {
+        if (raf.readInt() != MAGIC || raf.readByte() != VERSION || raf.readInt() != METRICS.length) {
+            throw new IOException("Not a coverage trend");
+        }
+    }
+
+    private void readRecord(ByteBuffer in) {
+        int number = in.getInt();
+        long timestamp = in.getLong();
+        int result = in.get();
+        int flags = in.get();
+        int mask = in.get();
+        Map<CoverageMetric, Ratio> results = new EnumMap<CoverageMetric, Ratio>(CoverageMetric.class);
+        for (CoverageMetric metric : METRICS) {
+            int numerator = in.getInt();
+            int denominator = in.getInt();
+            if ((mask & (1 << metric.ordinal())) != 0) {
+                results.put(metric, Ratio.create(numerator, denominator));
+            }
+        }
+        if ((flags & FLAG_DELETED) != 0) {
+            entries.remove(number);
+        } else {
+            entries.put(number, new Entry(number, timestamp, RESULTS[result], (flags & FLAG_ONLY_STABLE) != 0,
+                    results));
+        }
+    }
+
+    /**
+     * Appends the record of the build.
+     */
+    private synchronized void append(byte[] record) throws IOException {
+        if (pending != null) {
+            pending.write(record, 0, record.length);
+            readRecord(ByteBuffer.wrap(record));
+            snapshot = Collections.unmodifiableSortedMap(new TreeMap<Integer, Entry>(entries));
+            return;
+        }
+        write(file, record);
+    }
+
+    private static byte[] encode(int number, long timestamp, Result result, int flags,
+                                 Map<CoverageMetric, Ratio> results) {
+        ByteBuffer out = ByteBuffer.allocate(RECORD_SIZE);
+        out.putInt(number);
+        out.putLong(timestamp);
+        out.put((byte) result.ordinal);
+        out.put((byte) flags);
+        int mask = 0;
+        for (CoverageMetric metric : results.keySet()) {
+            mask |= 1 << metric.ordinal();
+        }
+        out.put((byte) mask);
+        for (CoverageMetric metric : METRICS) {
+            Ratio ratio = results.get(metric);
+            out.putInt(ratio == null ? 0 : ratio.numerator);
+            out.putInt(ratio == null ? 0 : ratio.denominator);
+        }
+        return out.array();
+    }
+
+    /**
+     * Appends the records to the file, writes the header first if the file is empty.
+     */
+    private static void write(File file, byte[] records) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long fileLength = raf.length();
+            if (fileLength < HEADER_SIZE) {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                raf.writeByte(VERSION);
+                raf.writeInt(METRICS.length);
+                fileLength = HEADER_SIZE;
+            }
+            // drop the record left partially written by a crash
+            fileLength -= (fileLength - HEADER_SIZE) % RECORD_SIZE;
+            raf.setLength(fileLength);
+            raf.seek(fileLength);
+            raf.write(records);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Starts collecting the trend in background if there is no trend file, for the jobs built before the trend file
+     * was introduced.
+     */
+    private synchronized void collectIfMissing(final AbstractProject<?, ?> project) {
+        if (pending == null && !file.exists()) {
+            pending = new ByteArrayOutputStream();
+            COLLECTOR.execute(new Runnable() {
+                public void run() {
+                    collect(project);
+                }
+            });
+        }
+    }
+
+    /**
+     * Collects the trend from the builds of the job without holding any lock, then writes the file with the records
+     * appended meanwhile after the collected ones, so they replace the collected records of the same builds.
+     */
+    private void collect(AbstractProject<?, ?> project) {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        try {
+            List<AbstractBuild<?, ?>> builds = new ArrayList<AbstractBuild<?, ?>>();
+            for (AbstractBuild<?, ?> b = project.getLastCompletedBuild(); b != null;
+                 b = b.getPreviousCompletedBuild()) {
+                builds.add(b);
+            }
+            Collections.reverse(builds);
+            for (AbstractBuild<?, ?> b : builds) {
+                CoverBuildAction action = b.getAction(CoverBuildAction.class);
+                if (action != null) {
+                    byte[] record = encode(b, action, action.getResults());
+                    records.write(record, 0, record.length);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to collect the coverage trend of " + project.getFullName(), e);
+        }
+
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        synchronized (this) {
+            try {
+                pending.writeTo(records);
+                temp.delete();
+                write(temp, records.toByteArray());
+                if (!temp.renameTo(file)) {
+                    // Windows cannot rename over an existing file
+                    if (!file.delete() || !temp.renameTo(file)) {
+                        temp.delete();
+                        throw new IOException("Unable to save " + file);
+                    }
+                }
+            } catch (IOException e) {
+                // the trend is collected again on the next access
+                logger.log(Level.WARNING, "Failed to write " + file, e);
+            } finally {
+                pending = null;
+                length = 0;
+                entries.clear();
+            }
+        }
+    }
+
+    private static byte[] encode(AbstractBuild<?, ?> build, CoverBuildAction action,
+                                 Map<CoverageMetric, Ratio> results) {
+        Result result = build.getResult();
+        return encode(build.getNumber(), build.getTimeInMillis(), result == null ? Result.SUCCESS : result,
+                action.includeOnlyStable() ? FLAG_ONLY_STABLE : 0, results);
+    }
+
+    /**
+     * Records completed and deleted builds with coverage.
+     */
+    @Extension
+    public static final class Listener extends RunListener<AbstractBuild> {
+        public Listener() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            CoverBuildAction action = build.getAction(CoverBuildAction.class);
+            if (action == null) {
+                return;
+            }
+            CoverageTrend trend = get(build.getProject());
+            try {
+                trend.append(encode(build, action, action.getResults()));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to write " + trend.file, e);
+            }
+            CoverageResult root = action.getResult();
+            if (root != null) {
+                // history collected meanwhile may already have the build, the repeated record replaces it
+                CoverageHistory.get(build.getProject()).append(build.getNumber(), CoverageHistory.getModules(root));
+            }
+        }
+
+        @Override
+        public void onDeleted(AbstractBuild build) {
+            if (build.getAction(CoverBuildAction.class) == null) {
+                return;
+            }
+            CoverageTrend trend = get(build.getProject());
+            try {
+                trend.append(encode(build.getNumber(), 0, Result.NOT_BUILT, FLAG_DELETED,
+                        Collections.<CoverageMetric, Ratio>emptyMap()));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to write " + trend.file, e);
+            }
+            CoverageHistory.get(build.getProject()).compactIfNeeded(build.getProject());
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(CoverageTrend.class.getName());
+}
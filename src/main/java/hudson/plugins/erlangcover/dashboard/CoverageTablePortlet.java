@@ -1,5 +1,6 @@
 package hudson.plugins.erlangcover.dashboard;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Maps;
 import hudson.Extension;
 import hudson.model.Descriptor;
@@ -9,74 +10,141 @@ import hudson.model.Run;
 import hudson.plugins.erlangcover.CoverBuildAction;
 import hudson.plugins.erlangcover.Ratio;
 import hudson.plugins.erlangcover.targets.CoverageMetric;
-import hudson.plugins.erlangcover.targets.CoverageResult;
 import hudson.plugins.view.dashboard.DashboardPortlet;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ExceptionCatchingThreadFactory;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
 public class CoverageTablePortlet extends DashboardPortlet {
+    /**
+     * Maximum number of jobs looked up concurrently, by all renderings.
+     */
+    private static final int LOOKUP_THREADS = 8;
+
+    /**
+     * Looks up the jobs of all renderings.
+     */
+    private static final ThreadPoolExecutor LOOKUP = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ExceptionCatchingThreadFactory(new DaemonThreadFactory()));
+
+    static {
+        LOOKUP.allowCoreThreadTimeOut(true);
+    }
 
     @DataBoundConstructor
     public CoverageTablePortlet(String name) {
         super(name);
     }
 
-    public Collection<Run> getCoverageRuns() {
-        LinkedList<Run> allResults = new LinkedList<Run>();
+    /**
+     * Gets the coverage of the dashboard jobs. Reads only the overall coverage kept with the builds, last
+     * successful builds of the jobs are looked up in parallel. Pages get the summary once per rendering.
+     */
+    public Summary getSummary() throws InterruptedException {
+        List<Job> jobs = getDashboard().getJobs();
+        List<Future<Row>> futures = new ArrayList<Future<Row>>(jobs.size());
+        try {
+            for (final Job job : jobs) {
+                futures.add(LOOKUP.submit(new Callable<Row>() {
+                    public Row call() {
+                        // Find the latest successful coverage data
+                        Run run = job.getLastSuccessfulBuild();
+                        CoverBuildAction action = run == null ? null : run.getAction(CoverBuildAction.class);
+                        return action == null ? null : new Row(run, action.getResults());
+                    }
+                }));
+            }
+            List<Row> rows = new ArrayList<Row>(jobs.size());
+            for (Future<Row> future : futures) {
+                try {
+                    Row row = future.get();
+                    if (row != null) {
+                        rows.add(row);
+                    }
+                } catch (ExecutionException e) {
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+            return new Summary(rows);
+        } finally {
+            // lookups left by an interrupted rendering
+            for (Future<Row> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
 
-        for (Job job : getDashboard().getJobs()) {
-            // Find the latest successful coverage data
-            Run run = job.getLastSuccessfulBuild();
-            if (run == null) continue;
+    /**
+     * Coverage of the dashboard jobs, computed once per rendering.
+     */
+    public static final class Summary {
+        private final List<Row> rows;
+        private final EnumMap<CoverageMetric, Ratio> total = Maps.newEnumMap(CoverageMetric.class);
+
+        Summary(List<Row> rows) {
+            this.rows = rows;
+            for (Row row : rows) {
+                for (Map.Entry<CoverageMetric, Ratio> e : row.results.entrySet()) {
+                    Ratio current = total.get(e.getKey());
+                    if (current == null) {
+                        total.put(e.getKey(), e.getValue());
+                    } else {
+                        total.put(e.getKey(), Ratio.create(current.numerator + e.getValue().numerator,
+                                current.denominator + e.getValue().denominator));
+                    }
+                }
+            }
+        }
 
-            CoverBuildAction rbb = run
-                    .getAction(CoverBuildAction.class);
+        public List<Row> getRows() {
+            return rows;
+        }
 
-            if (rbb != null) {
-                allResults.add(run);
-            }
+        /**
+         * Metrics of the first job, the columns of the table.
+         */
+        public Set<CoverageMetric> getMetrics() {
+            return rows.isEmpty() ? Collections.<CoverageMetric>emptySet() : rows.get(0).getMetrics();
         }
 
-        return allResults;
+        public EnumMap<CoverageMetric, Ratio> getTotal() {
+            return total;
+        }
     }
 
-    public CoverageResult getCoverageResult(Run run) {
-        CoverBuildAction rbb = run.getAction(CoverBuildAction.class);
-        return rbb.getResult();
-    }
+    /**
+     * Overall coverage of the last successful build of a job.
+     */
+    public static final class Row {
+        private final Run run;
+        private final Map<CoverageMetric, Ratio> results;
 
-    public EnumMap<CoverageMetric, Ratio> getTotalCoverageRatio() {
-        EnumMap<CoverageMetric, Ratio> totalRatioMap = Maps.newEnumMap(CoverageMetric.class);
-        for (Job job : getDashboard().getJobs()) {
-            // Find the latest successful coverage data
-            Run run = job.getLastSuccessfulBuild();
-            if (run == null) {
-                continue;
-            }
+        Row(Run run, Map<CoverageMetric, Ratio> results) {
+            this.run = run;
+            this.results = results;
+        }
 
-            CoverBuildAction rbb = run
-                    .getAction(CoverBuildAction.class);
-            if (rbb == null) {
-                continue;
-            }
+        public Run getRun() {
+            return run;
+        }
 
-            CoverageResult result = rbb.getResult();
-            Set<CoverageMetric> metrics = result.getMetrics();
-            for (CoverageMetric metric : metrics) {
-                if (totalRatioMap.get(metric) == null) {
-                    totalRatioMap.put(metric, result.getCoverage(metric));
-                } else {
-                    int currentNumerator = totalRatioMap.get(metric).numerator;
-                    int currentDenominator = totalRatioMap.get(metric).denominator;
-                    int sumNumerator = currentNumerator + result.getCoverage(metric).numerator;
-                    int sumDenominator = currentDenominator + result.getCoverage(metric).denominator;
-                    totalRatioMap.put(metric, Ratio.create(sumNumerator, sumDenominator));
-                }
-            }
+        public Set<CoverageMetric> getMetrics() {
+            return results.keySet();
+        }
+
+        public Ratio getCoverage(CoverageMetric metric) {
+            return results.get(metric);
         }
-        return totalRatioMap;
     }
 
     public static class DescriptorImpl extends Descriptor<DashboardPortlet> {
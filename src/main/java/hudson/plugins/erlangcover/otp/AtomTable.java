@@ -0,0 +1,89 @@
+package hudson.plugins.erlangcover.otp;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Cache of decoded atoms keyed on their raw bytes.
+ * <p/>
+ * Cover data repeats the same module and function atoms in every bump term, so the atom is hashed and compared
+ * in the buffer it is decoded from, and the string is only created the first time the atom is seen. Atoms of
+ * different encodings must be kept in separate tables.
+ *
+ * @author idubrov
+ */
+class AtomTable {
+    private byte[][] keys = new byte[256][];
+    private String[] values = new String[256];
+    private int size;
+
+    /**
+     * Reads the atom of the given length from the buffer, advancing its position.
+     */
+    String read(ByteBuffer term, int length, Charset charset) {
+        int start = term.position();
+        if (term.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        int hash = hash(term, start, length);
+        int mask = keys.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            byte[] key = keys[i];
+            if (key == null) {
+                byte[] bytes = new byte[length];
+                term.get(bytes);
+                String value = new String(bytes, charset);
+                keys[i] = bytes;
+                values[i] = value;
+                if (++size * 2 > keys.length) {
+                    rehash();
+                }
+                return value;
+            }
+            if (matches(key, term, start, length)) {
+                term.position(start + length);
+                return values[i];
+            }
+        }
+    }
+
+    private static int hash(ByteBuffer term, int start, int length) {
+        int hash = 1;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + term.get(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer term, int start, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != term.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        byte[][] oldKeys = keys;
+        String[] oldValues = values;
+        keys = new byte[oldKeys.length * 2][];
+        values = new String[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            byte[] key = oldKeys[j];
+            if (key != null) {
+                int i = hash(ByteBuffer.wrap(key), 0, key.length) & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package hudson.plugins.erlangcover.otp;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decoder of the Erlang external term format specialized for cover data files.
+ * <p/>
+ * Unlike {@link FixedOtpInputStream}, it never builds {@link com.ericsson.otp.erlang.OtpErlangObject} trees.
+ * Terms are decoded straight from a reused buffer and only the terms cover data consists of are recognized,
+ * everything else is skipped using the term framing. Decoded terms are reported to the {@link CoverDataHandler}.
+ *
+ * @author idubrov
+ */
+public class CoverDataDecoder {
+    private static final int VERSION_TAG = 131;
+    private static final int COMPRESSED_TAG = 80;
+    private static final int SMALL_INTEGER_TAG = 97;
+    private static final int INTEGER_TAG = 98;
+    private static final int ATOM_TAG = 100;
+    private static final int SMALL_TUPLE_TAG = 104;
+    private static final int LARGE_TUPLE_TAG = 105;
+    private static final int NIL_TAG = 106;
+    private static final int STRING_TAG = 107;
+    private static final int LIST_TAG = 108;
+    private static final int BINARY_TAG = 109;
+    private static final int SMALL_BIG_TAG = 110;
+    private static final int LARGE_BIG_TAG = 111;
+    private static final int SMALL_ATOM_TAG = 115;
+    private static final int ATOM_UTF8_TAG = 118;
+    private static final int SMALL_ATOM_UTF8_TAG = 119;
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] SIZE_ATOM = "$size".getBytes(LATIN1);
+    private static final byte[] BUMP_ATOM = "bump".getBytes(LATIN1);
+    private static final byte[] FILE_ATOM = "file".getBytes(LATIN1);
+
+    private final CoverDataHandler handler;
+    private final ModuleFilter filter;
+
+    /**
+     * Filter decisions by module atom. Atoms are shared, so they are looked up by identity.
+     */
+    private final Map<String, Boolean> accepted = new IdentityHashMap<String, Boolean>();
+
+    /**
+     * Buffer terms are read into, reused between terms.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+    /**
+     * Buffer compressed terms are inflated into, reused between terms.
+     */
+    private ByteBuffer inflated = ByteBuffer.allocate(256);
+
+    /**
+     * Inflater of compressed terms, created on the first one and reused between terms. It holds native memory
+     * until ended, so it is ended by {@link #end()} once decoding finishes rather than left to finalization.
+     */
+    private Inflater inflater;
+
+    /**
+     * Decoded atoms, so repeated module and function names are shared.
+     */
+    private final AtomTable latin1Atoms = new AtomTable();
+    private final AtomTable utf8Atoms = new AtomTable();
+
+    /**
+     * Scratch space for string bytes.
+     */
+    private byte[] scratch = new byte[256];
+
+    public CoverDataDecoder(CoverDataHandler handler) {
+        this(handler, ModuleFilter.ALL);
+    }
+
+    /**
+     * @param handler receives decoded terms
+     * @param filter  terms of the modules not accepted by the filter are skipped without decoding the rest of them
+     */
+    public CoverDataDecoder(CoverDataHandler handler, ModuleFilter filter) {
+        this.handler = handler;
+        this.filter = filter;
+    }
+
+    /**
+     * Decodes all terms from the stream. Java implementation of <code>cover:get_term/1</code> loop.
+     *
+     * @param in cover data stream
+     * @throws IOException if stream cannot be read or is not a valid cover data
+     */
+    public void decode(InputStream in) throws IOException {
+        try {
+            int size;
+            while ((size = in.read()) != -1) {
+                int next = decodeTerm(readTerm(in, size));
+                if (next != -1) {
+                    decodeTerm(readTerm(in, next));
+                }
+            }
+        } finally {
+            end();
+        }
+    }
+
+    private ByteBuffer readTerm(InputStream in, int size) throws IOException {
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        }
+        ByteStreams.readFully(in, buffer.array(), 0, size);
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Decodes all terms from the memory mapped file. Terms are decoded in place, without copying.
+     *
+     * @param data mapped cover data file
+     * @throws IOException if file is not a valid cover data
+     */
+    public void decode(MappedCoverData data) throws IOException {
+        try {
+            long offset = 0;
+            long end = data.size();
+            while (offset < end) {
+                int size = data.slice(offset, 1).get() & 0xff;
+                offset++;
+                int next = decodeTerm(data.slice(offset, size));
+                offset += size;
+                if (next != -1) {
+                    decodeTerm(data.slice(offset, next));
+                    offset += next;
+                }
+            }
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Decodes the given range of terms of the indexed file.
+     *
+     * @param data  mapped cover data file
+     * @param index index of the file
+     * @param from  first term to decode
+     * @param to    term to stop at, exclusive
+     * @throws IOException if file is not a valid cover data
+     */
+    public void decode(MappedCoverData data, CoverDataIndex index, int from, int to) throws IOException {
+        try {
+            for (int i = from; i < to; i++) {
+                decodeTerm(data.slice(index.getOffset(i), index.getSize(i)));
+            }
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Releases the native memory held for compressed terms. Called by the <code>decode</code> methods once they
+     * finish, callers of {@link #decodeTerm(ByteBuffer)} call it themselves. Decoder can still be used afterwards.
+     */
+    public void end() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    /**
+     * Checks if the term is <code>{'$size', Size}</code> marker, without decoding anything else.
+     *
+     * @param term buffer with the term between its position and limit
+     * @return size of the next term if the term is a marker, <code>-1</code> otherwise
+     * @throws IOException if the term is not a valid term
+     */
+    public static int sizeMarker(ByteBuffer term) throws IOException {
+        try {
+            if (u8(term) != VERSION_TAG) {
+                throw invalid();
+            }
+            if (tupleArity(term) == 2 && matchAtom(term, SIZE_ATOM)) {
+                return readInt(term);
+            }
+            return -1;
+        } catch (BufferUnderflowException e) {
+            throw invalid();
+        } catch (IndexOutOfBoundsException e) {
+            throw invalid();
+        }
+    }
+
+    /**
+     * Decodes single term in the external term format, starting from the version tag.
+     * Position of the buffer is advanced, but not necessarily to the end of the term.
+     *
+     * @param term buffer with the term between its position and limit
+     * @return size of the next term if decoded term is <code>{'$size', Size}</code>, <code>-1</code> otherwise
+     * @throws IOException if the term is not a valid term
+     */
+    public int decodeTerm(ByteBuffer term) throws IOException {
+        try {
+            if (u8(term) != VERSION_TAG) {
+                throw invalid();
+            }
+            if (peek(term) == COMPRESSED_TAG) {
+                term.get();
+                term = inflate(term);
+            }
+
+            int arity = tupleArity(term);
+            if (arity == 2) {
+                int tag = peek(term);
+                if (tag == SMALL_TUPLE_TAG || tag == LARGE_TUPLE_TAG) {
+                    // {{bump, Module, Function, Arity, Clause, Line}, HitCnt}
+                    if (tupleArity(term) == 6 && matchAtom(term, BUMP_ATOM)) {
+                        String module = readAtom(term);
+                        if (!accept(module)) {
+                            return -1;
+                        }
+                        String function = readAtom(term);
+                        int functionArity = readInt(term);
+                        int clause = readInt(term);
+                        int line = readInt(term);
+                        int hits = readInt(term);
+                        handler.onBump(module, function, functionArity, clause, line, hits);
+                    }
+                } else if (matchAtom(term, SIZE_ATOM)) {
+                    // {'$size', Size}
+                    return readInt(term);
+                }
+            } else if (arity == 3 && matchAtom(term, FILE_ATOM)) {
+                // {file, Module, BeamFile}
+                String module = readAtom(term);
+                if (!accept(module)) {
+                    return -1;
+                }
+                String path = readString(term);
+                handler.onFile(module, path);
+            }
+            return -1;
+        } catch (BufferUnderflowException e) {
+            throw invalid();
+        } catch (IndexOutOfBoundsException e) {
+            throw invalid();
+        }
+    }
+
+    private boolean accept(String module) {
+        if (filter == ModuleFilter.ALL) {
+            return true;
+        }
+        Boolean result = accepted.get(module);
+        if (result == null) {
+            result = filter.accept(module);
+            accepted.put(module, result);
+        }
+        return result;
+    }
+
+    private ByteBuffer inflate(ByteBuffer term) throws IOException {
+        int size = term.getInt();
+        int length = term.remaining();
+        byte[] input;
+        int offset;
+        if (term.hasArray()) {
+            input = term.array();
+            offset = term.arrayOffset() + term.position();
+        } else {
+            input = bytes(term, length);
+            offset = 0;
+        }
+
+        if (inflated.capacity() < size) {
+            inflated = ByteBuffer.allocate(Math.max(size, inflated.capacity() * 2));
+        }
+        if (inflater == null) {
+            inflater = new Inflater();
+        } else {
+            inflater.reset();
+        }
+        try {
+            inflater.setInput(input, offset, length);
+            int count = inflater.inflate(inflated.array(), 0, size);
+            if (count != size) {
+                throw new IOException("Decompression gave " + count + " bytes, not " + size);
+            }
+            if (!inflater.finished()) {
+                throw new IOException("Compressed term is truncated or longer than " + size + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("File is not valid cover data file.", e);
+        }
+        inflated.clear();
+        inflated.limit(size);
+        return inflated;
+    }
+
+    /**
+     * Reads tuple header.
+     *
+     * @return tuple arity or <code>-1</code> if term is not a tuple (in which case position is not advanced)
+     */
+    private static int tupleArity(ByteBuffer term) {
+        int tag = peek(term);
+        if (tag == SMALL_TUPLE_TAG) {
+            term.get();
+            return u8(term);
+        } else if (tag == LARGE_TUPLE_TAG) {
+            term.get();
+            return term.getInt();
+        }
+        return -1;
+    }
+
+    /**
+     * Reads atom and compares it to the expected one without decoding it.
+     */
+    private static boolean matchAtom(ByteBuffer term, byte[] expected) {
+        int length = atomLength(term, u8(term));
+        if (length != expected.length) {
+            return false;
+        }
+        for (byte b : expected) {
+            if (term.get() != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int atomLength(ByteBuffer term, int tag) {
+        switch (tag) {
+            case ATOM_TAG:
+            case ATOM_UTF8_TAG:
+                return u16(term);
+            case SMALL_ATOM_TAG:
+            case SMALL_ATOM_UTF8_TAG:
+                return u8(term);
+            default:
+                return -1;
+        }
+    }
+
+    private String readAtom(ByteBuffer term) throws IOException {
+        int tag = u8(term);
+        int length = atomLength(term, tag);
+        if (length == -1) {
+            throw invalid();
+        }
+        if (tag == ATOM_UTF8_TAG || tag == SMALL_ATOM_UTF8_TAG) {
+            return utf8Atoms.read(term, length, UTF8);
+        }
+        return latin1Atoms.read(term, length, LATIN1);
+    }
+
+    private String readString(ByteBuffer term) throws IOException {
+        int tag = u8(term);
+        switch (tag) {
+            case NIL_TAG:
+                return "";
+            case STRING_TAG: {
+                int length = u16(term);
+                return new String(bytes(term, length), 0, length, LATIN1);
+            }
+            case BINARY_TAG: {
+                int length = term.getInt();
+                return new String(bytes(term, length), 0, length, UTF8);
+            }
+            case LIST_TAG: {
+                int length = term.getInt();
+                StringBuilder builder = new StringBuilder(length);
+                for (int i = 0; i < length; i++) {
+                    builder.appendCodePoint(readInt(term));
+                }
+                if (u8(term) != NIL_TAG) {
+                    throw invalid();
+                }
+                return builder.toString();
+            }
+            default:
+                throw invalid();
+        }
+    }
+
+    /**
+     * Reads integer, clamping bignums to the <code>int</code> range.
+     */
+    private static int readInt(ByteBuffer term) throws IOException {
+        int tag = u8(term);
+        switch (tag) {
+            case SMALL_INTEGER_TAG:
+                return u8(term);
+            case INTEGER_TAG:
+                return term.getInt();
+            case SMALL_BIG_TAG:
+                return readBig(term, u8(term));
+            case LARGE_BIG_TAG:
+                return readBig(term, term.getInt());
+            default:
+                throw invalid();
+        }
+    }
+
+    private static int readBig(ByteBuffer term, int digits) {
+        boolean negative = u8(term) != 0;
+        long value = 0;
+        for (int i = 0; i < digits; i++) {
+            long digit = u8(term);
+            if (i < 4) {
+                value |= digit << (8 * i);
+            } else if (digit != 0) {
+                value = Long.MAX_VALUE;
+            }
+        }
+        value = Math.min(value, Integer.MAX_VALUE);
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * Copies bytes from the buffer into the scratch array.
+     */
+    private byte[] bytes(ByteBuffer term, int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        term.get(scratch, 0, length);
+        return scratch;
+    }
+
+    private static int peek(ByteBuffer term) {
+        return term.get(term.position()) & 0xff;
+    }
+
+    private static int u8(ByteBuffer term) {
+        return term.get() & 0xff;
+    }
+
+    private static int u16(ByteBuffer term) {
+        return term.getShort() & 0xffff;
+    }
+
+    private static IOException invalid() {
+        return new IOException("File is not valid cover data file.");
+    }
+}
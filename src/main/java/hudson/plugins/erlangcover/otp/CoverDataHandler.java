@@ -0,0 +1,22 @@
+package hudson.plugins.erlangcover.otp;
+
+/**
+ * Receives the terms decoded by {@link CoverDataDecoder}.
+ *
+ * @author idubrov
+ */
+public interface CoverDataHandler {
+
+    /**
+     * Called for every <code>{file, Module, BeamFile}</code> term.
+     *
+     * @param module   module name
+     * @param beamPath path to the module beam file, as seen by the node that exported the data
+     */
+    void onFile(String module, String beamPath);
+
+    /**
+     * Called for every <code>{{bump, Module, Function, Arity, Clause, Line}, HitCnt}</code> term.
+     */
+    void onBump(String module, String function, int arity, int clause, int line, int hits);
+}
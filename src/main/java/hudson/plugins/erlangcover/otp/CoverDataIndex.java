@@ -0,0 +1,67 @@
+package hudson.plugins.erlangcover.otp;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Offsets and sizes of the terms in cover data file.
+ * <p/>
+ * Terms are framed by the size byte or by the <code>{'$size', Size}</code> marker term, so the index is built
+ * without decoding the terms themselves. Markers are not included into the index.
+ *
+ * @author idubrov
+ */
+public class CoverDataIndex {
+    private final TLongArrayList offsets = new TLongArrayList();
+    private final TIntArrayList sizes = new TIntArrayList();
+
+    private CoverDataIndex() {
+    }
+
+    /**
+     * Scans the framing of the whole file.
+     *
+     * @throws IOException if file is not a valid cover data
+     */
+    public static CoverDataIndex build(MappedCoverData data) throws IOException {
+        CoverDataIndex index = new CoverDataIndex();
+        long offset = 0;
+        long end = data.size();
+        while (offset < end) {
+            int size = data.slice(offset, 1).get() & 0xff;
+            offset++;
+            int next = CoverDataDecoder.sizeMarker(data.slice(offset, size));
+            if (next != -1) {
+                offset += size;
+                size = next;
+            }
+            if (offset + size > end) {
+                throw new EOFException("File is not valid cover data file.");
+            }
+            index.offsets.add(offset);
+            index.sizes.add(size);
+            offset += size;
+        }
+        return index;
+    }
+
+    /**
+     * Getter for property 'size'.
+     *
+     * @return Number of terms in the index.
+     */
+    public int size() {
+        return offsets.size();
+    }
+
+    public long getOffset(int term) {
+        return offsets.get(term);
+    }
+
+    public int getSize(int term) {
+        return sizes.get(term);
+    }
+}
@@ -41,8 +41,9 @@ public class FixedOtpInputStream extends OtpInputStream {
 
         final int size = read4BE();
         final byte[] buf = new byte[size];
+        final Inflater inflater = new Inflater();
         final java.util.zip.InflaterInputStream is =
-                new java.util.zip.InflaterInputStream(this, new Inflater(), size);
+                new java.util.zip.InflaterInputStream(this, inflater, size);
         try {
             final int dsize = is.read(buf, 0, size);
             if (dsize != size) {
@@ -51,6 +52,9 @@ public class FixedOtpInputStream extends OtpInputStream {
             }
         } catch (final IOException e) {
             throw new OtpErlangDecodeException("Cannot read from input stream");
+        } finally {
+            // release native memory now rather than on finalization
+            inflater.end();
         }
 
         final OtpInputStream ois = new OtpInputStream(buf, flags);
@@ -0,0 +1,79 @@
+package hudson.plugins.erlangcover.otp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Cover data file mapped into memory.
+ * <p/>
+ * Single mapping cannot exceed 2 GB, so larger files are mapped in segments. Segment always starts at the
+ * beginning of a term, so terms never straddle segments.
+ *
+ * @author idubrov
+ */
+public class MappedCoverData {
+    private static final long SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private final FileChannel channel;
+    private final long size;
+    private final long segmentSize;
+
+    private long segmentStart;
+    private long segmentEnd;
+    private MappedByteBuffer segment;
+
+    public MappedCoverData(FileChannel channel) throws IOException {
+        this(channel, channel.size());
+    }
+
+    /**
+     * Maps only the first <code>size</code> bytes of the file.
+     */
+    public MappedCoverData(FileChannel channel, long size) {
+        this(channel, size, SEGMENT_SIZE);
+    }
+
+    MappedCoverData(FileChannel channel, long size, long segmentSize) {
+        this.channel = channel;
+        this.size = size;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Getter for property 'size'.
+     *
+     * @return Value for property 'size'.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns buffer with given region of the file between its position and limit. The same buffer is reused
+     * between calls, so it is only valid until the next call.
+     *
+     * @throws EOFException if region is beyond the end of file
+     */
+    public ByteBuffer slice(long offset, int length) throws IOException {
+        if (offset + length > size) {
+            throw new EOFException("File is not valid cover data file.");
+        }
+        if (segment == null || offset < segmentStart || offset + length > segmentEnd) {
+            map(offset, length);
+        }
+        int position = (int) (offset - segmentStart);
+        segment.limit(position + length);
+        segment.position(position);
+        return segment;
+    }
+
+    private void map(long offset, int length) throws IOException {
+        long mapSize = Math.min(Math.max(segmentSize, length), size - offset);
+        segment = channel.map(FileChannel.MapMode.READ_ONLY, offset, mapSize);
+        segmentStart = offset;
+        segmentEnd = offset + mapSize;
+    }
+}
@@ -0,0 +1,82 @@
+package hudson.plugins.erlangcover.otp;
+
+import java.util.regex.Pattern;
+
+/**
+ * Selects modules to report by include and exclude patterns.
+ * <p/>
+ * Patterns are separated by commas or whitespace and may contain <code>*</code> and <code>?</code> wildcards,
+ * e.g. <code>*_pb, *_tests</code>. Module is accepted if it matches any include pattern (or there are none)
+ * and does not match any exclude pattern.
+ *
+ * @author idubrov
+ */
+public class ModuleFilter {
+    /**
+     * Filter accepting every module.
+     */
+    public static final ModuleFilter ALL = new ModuleFilter(null, null);
+
+    private final Pattern includes;
+    private final Pattern excludes;
+
+    private ModuleFilter(Pattern includes, Pattern excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    /**
+     * Creates filter from the include and exclude pattern lists.
+     *
+     * @param includes modules to include, all modules if blank
+     * @param excludes modules to exclude, none if blank
+     */
+    public static ModuleFilter create(String includes, String excludes) {
+        Pattern include = compile(includes);
+        Pattern exclude = compile(excludes);
+        if (include == null && exclude == null) {
+            return ALL;
+        }
+        return new ModuleFilter(include, exclude);
+    }
+
+    public boolean accept(String module) {
+        if (includes != null && !includes.matcher(module).matches()) {
+            return false;
+        }
+        return excludes == null || !excludes.matcher(module).matches();
+    }
+
+    /**
+     * Compiles the pattern list into single regular expression.
+     */
+    private static Pattern compile(String patterns) {
+        if (patterns == null) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String glob : patterns.split("[,\\s]+")) {
+            if (glob.length() == 0) {
+                continue;
+            }
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            int start = 0;
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' || c == '?') {
+                    if (start < i) {
+                        regex.append(Pattern.quote(glob.substring(start, i)));
+                    }
+                    regex.append(c == '*' ? ".*" : ".");
+                    start = i + 1;
+                }
+            }
+            if (start < glob.length()) {
+                regex.append(Pattern.quote(glob.substring(start)));
+            }
+        }
+        return regex.length() > 0 ? Pattern.compile(regex.toString()) : null;
+    }
+}
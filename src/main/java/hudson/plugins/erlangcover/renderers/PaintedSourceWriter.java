@@ -0,0 +1,180 @@
+package hudson.plugins.erlangcover.renderers;
+
+import hudson.plugins.erlangcover.targets.CoveragePaint;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Writes the source as table rows of painted source page, one row per line with its number, hits and escaped code.
+ * <p/>
+ * Source is read in chunks and escaped straight into the output buffer, markup is copied from constant fragments,
+ * so painting does not allocate per line. Lines are split the same way as {@link java.io.BufferedReader#readLine()}
+ * does.
+ *
+ * @author idubrov
+ */
+final class PaintedSourceWriter {
+    private static final char[] ROW_FULL = "<tr class=\"coverFull\">\n".toCharArray();
+    private static final char[] ROW_NONE = "<tr class=\"coverNone\">\n".toCharArray();
+    private static final char[] ROW_NO_COVER = "<tr class=\"noCover\">\n".toCharArray();
+    private static final char[] LINE_START = "<td class=\"line\"><a name='".toCharArray();
+    private static final char[] LINE_ANCHOR_END = "'/>".toCharArray();
+    private static final char[] LINE_END = "</td>\n".toCharArray();
+    private static final char[] HITS_START = "<td class=\"hits\">".toCharArray();
+    private static final char[] HITS_END = "</td>\n".toCharArray();
+    private static final char[] HITS_EMPTY = "<td class=\"hits\"/>\n".toCharArray();
+    private static final char[] CODE_START = "<td class=\"code\">".toCharArray();
+    private static final char[] ROW_END = "</td>\n</tr>\n".toCharArray();
+
+    private static final char[] AMP = "&amp;".toCharArray();
+    private static final char[] LT = "&lt;".toCharArray();
+    private static final char[] GT = "&gt;".toCharArray();
+    private static final char[] SPACE = "&nbsp;".toCharArray();
+    private static final char[] TAB = "&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;".toCharArray();
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Writer out;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int length;
+    private final char[] digits = new char[11];
+
+    PaintedSourceWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the rows of all lines of the source and flushes them to the underlying writer.
+     */
+    void paint(Reader source, CoveragePaint paint) throws IOException {
+        char[] chunk = new char[BUFFER_SIZE];
+        int line = 0;
+        boolean inLine = false;
+        boolean afterCR = false;
+        int n;
+        while ((n = source.read(chunk)) != -1) {
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                char c = chunk[i];
+                if (c == '\n' || c == '\r') {
+                    if (c == '\n' && afterCR) {
+                        // second half of CR LF
+                        afterCR = false;
+                        start = i + 1;
+                        continue;
+                    }
+                    if (!inLine) {
+                        startRow(++line, paint);
+                    }
+                    escape(chunk, start, i);
+                    append(ROW_END);
+                    inLine = false;
+                    afterCR = c == '\r';
+                    start = i + 1;
+                } else {
+                    afterCR = false;
+                    if (!inLine) {
+                        startRow(++line, paint);
+                        inLine = true;
+                    }
+                }
+            }
+            if (inLine) {
+                escape(chunk, start, n);
+            }
+        }
+        if (inLine) {
+            append(ROW_END);
+        }
+        flush();
+    }
+
+    private void startRow(int line, CoveragePaint paint) throws IOException {
+        boolean painted = paint.isPainted(line);
+        int hits = painted ? paint.getHits(line) : 0;
+        append(!painted ? ROW_NO_COVER : (hits > 0 ? ROW_FULL : ROW_NONE));
+        append(LINE_START);
+        appendNumber(line);
+        append(LINE_ANCHOR_END);
+        appendNumber(line);
+        append(LINE_END);
+        if (painted) {
+            append(HITS_START);
+            appendNumber(hits);
+            append(HITS_END);
+        } else {
+            append(HITS_EMPTY);
+        }
+        append(CODE_START);
+    }
+
+    private void escape(char[] chars, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            switch (c) {
+                case '&':
+                    append(AMP);
+                    break;
+                case '<':
+                    append(LT);
+                    break;
+                case '>':
+                    append(GT);
+                    break;
+                case ' ':
+                    append(SPACE);
+                    break;
+                case '\t':
+                    append(TAB);
+                    break;
+                default:
+                    if (length == BUFFER_SIZE) {
+                        flushBuffer();
+                    }
+                    buffer[length++] = c;
+                    break;
+            }
+        }
+    }
+
+    private void appendNumber(int value) throws IOException {
+        int i = digits.length;
+        long v = value;
+        boolean negative = v < 0;
+        if (negative) {
+            v = -v;
+        }
+        do {
+            digits[--i] = (char) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        if (negative) {
+            digits[--i] = '-';
+        }
+        append(digits, i, digits.length - i);
+    }
+
+    private void append(char[] chars) throws IOException {
+        append(chars, 0, chars.length);
+    }
+
+    private void append(char[] chars, int offset, int count) throws IOException {
+        if (BUFFER_SIZE - length < count) {
+            flushBuffer();
+        }
+        System.arraycopy(chars, offset, buffer, length, count);
+        length += count;
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, length);
+        length = 0;
+    }
+
+    private void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+}
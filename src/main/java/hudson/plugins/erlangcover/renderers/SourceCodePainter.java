@@ -1,25 +1,35 @@
 package hudson.plugins.erlangcover.renderers;
 
 import hudson.FilePath;
-import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.plugins.erlangcover.targets.CoveragePaint;
 import hudson.remoting.VirtualChannel;
-import org.apache.tools.ant.DirectoryScanner;
-import org.apache.tools.ant.Project;
-import org.apache.tools.ant.types.FileSet;
+import hudson.util.DaemonThreadFactory;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * TODO javadoc.
@@ -28,91 +38,123 @@ import java.util.*;
  * @since 31-Aug-2007 16:52:25
  */
 public class SourceCodePainter implements FilePath.FileCallable<Boolean>, Serializable {
+	/**
+	 * Maximum number of sources painted concurrently on the agent, set on the controller.
+	 */
+	private static final int PARALLELISM = Integer.getInteger(SourceCodePainter.class.getName() + ".parallelism", 0);
+
+	private static final String PACK_FILE_NAME = "coverage-sources.pack";
+
+	/**
+	 * Number of previous builds searched for the pack to reuse.
+	 */
+	private static final int PREVIOUS_PACK_SEARCH_LIMIT = 10;
+
 	private final Set<String> sourcePaths;
 	private final Map<String, CoveragePaint> paint;
+	/**
+	 * Digests of the sources in the pack of the previous build, by relative path.
+	 */
+	private final Map<String, String> previous;
+	/**
+	 * File the painted sources are written to, read by {@link SourcePack#write(File, SourcePack, File)}.
+	 */
 	private final FilePath destination;
 	private final BuildListener listener;
 	private final SourceEncoding sourceEncoding;
+	/**
+	 * Maximum number of sources painted concurrently, number of processors of the agent if not positive.
+	 */
+	private final int parallelism;
+	/**
+	 * Indexes of the source directories, on the agent.
+	 */
+	private transient List<SourceIndex> indexes;
 
-	public SourceCodePainter(FilePath destination, Set<String> sourcePaths, Map<String, CoveragePaint> paint, BuildListener listener,
-			SourceEncoding sourceEncoding) {
+	public SourceCodePainter(FilePath destination, Set<String> sourcePaths, Map<String, CoveragePaint> paint,
+			Map<String, String> previous, BuildListener listener, SourceEncoding sourceEncoding) {
 		this.destination = destination;
 		this.sourcePaths = sourcePaths;
 		this.paint = paint;
+		this.previous = previous;
 		this.listener = listener;
 		this.sourceEncoding = sourceEncoding;
+		this.parallelism = PARALLELISM;
 	}
 
-	public void paintSourceCode(File source, CoveragePaint paint, FilePath canvas) throws IOException, InterruptedException {
-		OutputStream os = null;
-
-		FileInputStream is = null;
-		InputStreamReader reader = null;
-		BufferedReader input = null;
-		OutputStreamWriter bos = null;
-
-		BufferedWriter output = null;
-		int line = 0;
+	/**
+	 * Paints the source and the paints of the build on the agent into the pack of the build. Unchanged sources are
+	 * copied from the pack of the previous build; if they cannot be copied, for instance because the previous build
+	 * was deleted meanwhile, all sources are painted again. Painted sources are not worth failing the build, so
+	 * failures are reported and the build goes on without them.
+	 */
+	public static void paint(AbstractBuild<?, ?> build, FilePath moduleRoot, Set<String> sourcePaths,
+			Map<String, CoveragePaint> paint, BuildListener listener, SourceEncoding sourceEncoding)
+			throws InterruptedException {
+		SourcePack previous = getPreviousPack(build);
+		File painted = new File(build.getRootDir(), PACK_FILE_NAME + ".painted");
+		File pack = paintedSourcesPack(build);
 		try {
-			canvas.getParent().mkdirs();
-			os = canvas.write();
-			is = new FileInputStream(source);
-			reader = new InputStreamReader(is, getSourceEncoding().getEncodingName());
-			input = new BufferedReader(reader);
-			bos = new OutputStreamWriter(os, "UTF-8");
-			output = new BufferedWriter(bos);
-			String content;
-			while ((content = input.readLine()) != null) {
-				line++;
-
-				if (paint.isPainted(line)) {
-					final int hits = paint.getHits(line);
-					if (paint.getHits(line) > 0) {
-    					output.write("<tr class=\"coverFull\">\n");
-					} else {
-						output.write("<tr class=\"coverNone\">\n");
-					}
-					output.write("<td class=\"line\"><a name='" + line + "'/>" + line + "</td>\n");
-					output.write("<td class=\"hits\">" + hits + "</td>\n");
-				} else {
-					output.write("<tr class=\"noCover\">\n");
-					output.write("<td class=\"line\"><a name='" + line + "'/>" + line + "</td>\n");
-					output.write("<td class=\"hits\"/>\n");
+			moduleRoot.act(new SourceCodePainter(new FilePath(painted), sourcePaths, paint,
+					previous == null ? new HashMap<String, String>() : previous.getDigests(), listener, sourceEncoding));
+			if (previous != null) {
+				try {
+					SourcePack.write(painted, previous, pack);
+					return;
+				} catch (IOException e) {
+					e.printStackTrace(listener.error("Unable to copy unchanged painted sources from "
+							+ previous.getFile() + ", painting all sources"));
 				}
-				output.write("<td class=\"code\">"
-						+ content.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\n", "").replace("\r", "").replace(" ",
-								"&nbsp;").replace("\t", "&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;") + "</td>\n");
-				output.write("</tr>\n");
+				moduleRoot.act(new SourceCodePainter(new FilePath(painted), sourcePaths, paint,
+						new HashMap<String, String>(), listener, sourceEncoding));
 			}
-
+			SourcePack.write(painted, null, pack);
+		} catch (IOException e) {
+			e.printStackTrace(listener.error("Unable to save painted sources to " + pack));
 		} finally {
-			if (output != null) {
-				output.close();
-			}
-			if (bos != null) {
-				bos.close();
-			}
-			if (input != null) {
-				input.close();
-			}
-			if (is != null) {
-				is.close();
-			}
+			painted.delete();
+		}
+	}
 
-			
-			if (os != null) {
-				os.close();
-			}
-			if (reader != null) {
-				reader.close();
+	/**
+	 * Finds the pack of the closest of the last few builds.
+	 *
+	 * @return the pack or <code>null</code> if there is none
+	 */
+	private static SourcePack getPreviousPack(AbstractBuild<?, ?> build) {
+		AbstractBuild<?, ?> b = build.getPreviousBuild();
+		for (int i = 0; i < PREVIOUS_PACK_SEARCH_LIMIT && b != null; i++, b = b.getPreviousBuild()) {
+			try {
+				SourcePack pack = SourcePack.open(paintedSourcesPack(b));
+				if (pack != null) {
+					return pack;
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to read painted sources of " + b, e);
 			}
 		}
+		return null;
+	}
+
+	public void paintSourceCode(File source, CoveragePaint paint, OutputStream os) throws IOException {
+		FileInputStream is = new FileInputStream(source);
+		try {
+			Reader input = new InputStreamReader(is, getSourceEncoding().getEncodingName());
+			new PaintedSourceWriter(new OutputStreamWriter(os, "UTF-8")).paint(input, paint);
+		} finally {
+			is.close();
+		}
 	}
 
 	/**
 	 * {@inheritDoc}
+	 * <p/>
+	 * Sources are painted concurrently, any failure to look up or paint one of them is reported and does not stop
+	 * the others. Interrupt stops painting, waits for the workers to finish the sources they paint, reports how many
+	 * sources were painted and is rethrown. Sources whose content and paint are the same as in the pack of the
+	 * previous build are not painted again.
 	 */
-	public Boolean invoke(File workspaceDir, VirtualChannel channel) throws IOException {
+	public Boolean invoke(File workspaceDir, VirtualChannel channel) throws IOException, InterruptedException {
 		final List<File> trialPaths = new ArrayList<File>(sourcePaths.size());
         trialPaths.add(workspaceDir);
 		for (String sourcePath : sourcePaths) {
@@ -125,26 +167,108 @@ public class SourceCodePainter implements FilePath.FileCallable<Boolean>, Serial
 				trialPaths.add(trialPath2);
 			}
 		}
-		for (Map.Entry<String, CoveragePaint> entry : paint.entrySet()) {
-			// first see if we can find the file directly
-			File source = lookupSource(trialPaths, entry.getKey());
-			if (source.isFile()) {
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(destination.write()));
+
+		int threads = Math.max(1, Math.min(paint.size(), parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory());
+		final AtomicInteger painted = new AtomicInteger();
+		final AtomicInteger skipped = new AtomicInteger();
+		final AtomicLong paintedBytes = new AtomicLong();
+		long start = System.nanoTime();
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(paint.size());
+			for (final Map.Entry<String, CoveragePaint> entry : paint.entrySet()) {
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws InterruptedException {
+						if (Thread.currentThread().isInterrupted()) {
+							throw new InterruptedException();
+						}
+						try {
+							// first see if we can find the file directly
+							File source = lookupSource(trialPaths, entry.getKey());
+							if (source == null || !source.isFile()) {
+								return null;
+							}
+							String digest = SourcePack.digest(source, getSourceEncoding().getEncodingName(),
+									entry.getValue());
+							byte[] member = null;
+							if (!digest.equals(previous.get(entry.getKey()))) {
+								ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+								GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+								paintSourceCode(source, entry.getValue(), gzip);
+								gzip.close();
+								member = bytes.toByteArray();
+							}
+							synchronized (out) {
+								out.writeUTF(entry.getKey());
+								out.writeUTF(digest);
+								if (member == null) {
+									out.writeInt(-1);
+								} else {
+									out.writeInt(member.length);
+									out.write(member);
+								}
+							}
+							if (member == null) {
+								skipped.incrementAndGet();
+							} else {
+								painted.incrementAndGet();
+								paintedBytes.addAndGet(source.length());
+							}
+						} catch (IOException e) {
+							if (Thread.interrupted()) {
+								throw new InterruptedException();
+							}
+							reportFailure(entry.getKey(), e);
+						} catch (RuntimeException e) {
+							reportFailure(entry.getKey(), e);
+						}
+						return null;
+					}
+				}));
+			}
+			try {
+				for (Future<?> future : futures) {
+					try {
+						future.get();
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof InterruptedException) {
+							throw (InterruptedException) e.getCause();
+						}
+						throw (Error) e.getCause();
+					}
+				}
+			} finally {
+				executor.shutdownNow();
 				try {
-					paintSourceCode(source, entry.getValue(), destination.child(entry.getKey()));
-				} catch (IOException e) {
-					// We made our best shot at generating painted source code,
-					// but alas, we failed. Log the error and continue. We
-					// should not fail the build just because we cannot paint
-					// one file.
-					e.printStackTrace(listener.error("ERROR: Failure to paint " + source + " to " + destination));
-				} catch (InterruptedException e) {
-					return Boolean.FALSE;
+					// workers stop once they write the record of the source they paint
+					executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+				} finally {
+					out.close();
 				}
 			}
+		} catch (InterruptedException e) {
+			listener.getLogger().println("Painting of sources interrupted, " + painted.get() + " painted and "
+					+ skipped.get() + " unchanged of " + paint.size());
+			throw e;
 		}
+		double megabytes = paintedBytes.get() / (1024.0 * 1024.0);
+		double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+		listener.getLogger().println(String.format("Painted %d and skipped %d unchanged of %d sources, %.1f MB at %.1f MB/s",
+				painted.get(), skipped.get(), paint.size(), megabytes, megabytes / seconds));
 		return Boolean.TRUE;
 	}
 
+	/**
+	 * Reports the failure to paint a source. We made our best shot at generating painted source code, but alas,
+	 * we failed. We should not fail the build just because we cannot paint one file.
+	 */
+	private void reportFailure(String relativePath, Exception e) {
+		synchronized (listener) {
+			e.printStackTrace(listener.error("ERROR: Failure to paint " + relativePath));
+		}
+	}
+
     private File lookupSource(Collection<File> trialPaths, String relativePath) throws IOException {
         for (File path : trialPaths) {
             File source = new File(path, relativePath);
@@ -154,17 +278,29 @@ public class SourceCodePainter implements FilePath.FileCallable<Boolean>, Serial
         }
 
         // Try searching files
-        for (File dir : trialPaths) {
-            FileSet fs = Util.createFileSet(dir, "**/" + relativePath, null);
-            DirectoryScanner ds = fs.getDirectoryScanner(new Project());
-            String[] files = ds.getIncludedFiles();
-            if (files.length > 0) {
-                return new File(dir, files[0]);
+        for (SourceIndex index : getIndexes(trialPaths)) {
+            File source = index.find(relativePath);
+            if (source != null) {
+                return source;
             }
         }
         return null;
     }
 
+    /**
+     * Gets the indexes of the trial paths, built on the first lookup that needs them.
+     */
+    private synchronized List<SourceIndex> getIndexes(Collection<File> trialPaths) throws IOException {
+        if (indexes == null) {
+            List<SourceIndex> result = new ArrayList<SourceIndex>(trialPaths.size());
+            for (File dir : trialPaths) {
+                result.add(SourceIndex.get(dir));
+            }
+            indexes = result;
+        }
+        return indexes;
+    }
+
 	public SourceEncoding getSourceEncoding() {
 		if (sourceEncoding == null) {
 			return SourceEncoding.UTF_8;
@@ -172,7 +308,20 @@ public class SourceCodePainter implements FilePath.FileCallable<Boolean>, Serial
 		return sourceEncoding;
 	}
 
+    /**
+     * Directory of the sources painted by the builds made before {@link #paintedSourcesPack(AbstractBuild)}, shared
+     * by all builds of the job.
+     */
     public static File paintedSourcesDirectory(AbstractBuild<?, ?> build) {
         return new File(build.getProject().getRootDir(), "cover/");
     }
+
+    /**
+     * Gets the file of the {@link SourcePack} of the build.
+     */
+    public static File paintedSourcesPack(AbstractBuild<?, ?> build) {
+        return new File(build.getRootDir(), PACK_FILE_NAME);
+    }
+
+    private static final Logger logger = Logger.getLogger(SourceCodePainter.class.getName());
 }
@@ -0,0 +1,138 @@
+package hudson.plugins.erlangcover.renderers;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Files under a directory by their names, built in a single walk of the directory.
+ * <p/>
+ * Build output and dependency directories (<code>_build</code>, <code>deps</code>) and <code>.git</code> are not
+ * walked. Indexes are kept between builds and rebuilt once a modification time of any walked directory changes,
+ * that is once a file is added, removed or renamed in the tree.
+ *
+ * @author idubrov
+ */
+final class SourceIndex {
+    private static final Set<String> PRUNED = new HashSet<String>(Arrays.asList("_build", ".git", "deps"));
+
+    /**
+     * Indexes built on this agent, by root directory.
+     */
+    private static final Cache<File, SourceIndex> INDEXES = CacheBuilder.newBuilder()
+            .maximumSize(16)
+            .softValues()
+            .build();
+
+    private final File root;
+    /**
+     * Paths of the files relative to the root, by file name.
+     */
+    private final Map<String, List<String>> files = new HashMap<String, List<String>>();
+    /**
+     * Modification times of the walked directories.
+     */
+    private final Map<File, Long> directories = new LinkedHashMap<File, Long>();
+
+    private SourceIndex(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Gets the index of the directory, builds it if there is none or the directory changed since.
+     */
+    static SourceIndex get(final File root) throws IOException {
+        SourceIndex index = INDEXES.getIfPresent(root);
+        if (index != null && !index.isValid()) {
+            INDEXES.invalidate(root);
+        }
+        try {
+            // concurrent builds in the same directory share a single walk
+            return INDEXES.get(root, new Callable<SourceIndex>() {
+                public SourceIndex call() throws IOException {
+                    SourceIndex index = new SourceIndex(root);
+                    index.walk(root, "", new HashSet<String>());
+                    return index;
+                }
+            });
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /**
+     * Finds the file whose path ends with the given relative path.
+     *
+     * @return the file or <code>null</code> if there is none
+     */
+    File find(String relativePath) {
+        String path = relativePath.replace('\\', '/');
+        List<String> candidates = files.get(path.substring(path.lastIndexOf('/') + 1));
+        if (candidates == null) {
+            return null;
+        }
+        for (String candidate : candidates) {
+            if (candidate.equals(path) || candidate.endsWith('/' + path)) {
+                return new File(root, candidate);
+            }
+        }
+        return null;
+    }
+
+    private boolean isValid() {
+        for (Map.Entry<File, Long> directory : directories.entrySet()) {
+            if (directory.getKey().lastModified() != directory.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Walks the directory in name order, so the lookup picks the same file as long as the tree does not change.
+     *
+     * @param visited canonical paths of the walked directories, to stop at symbolic link cycles
+     */
+    private void walk(File dir, String path, Set<String> visited) throws IOException {
+        if (!visited.add(dir.getCanonicalPath())) {
+            return;
+        }
+        directories.put(dir, dir.lastModified());
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        List<File> subdirectories = new ArrayList<File>();
+        for (File child : children) {
+            String name = child.getName();
+            if (child.isDirectory()) {
+                if (!PRUNED.contains(name)) {
+                    subdirectories.add(child);
+                }
+            } else {
+                List<String> paths = files.get(name);
+                if (paths == null) {
+                    paths = new ArrayList<String>(1);
+                    files.put(name, paths);
+                }
+                paths.add(path + name);
+            }
+        }
+        for (File subdirectory : subdirectories) {
+            walk(subdirectory, path + subdirectory.getName() + '/', visited);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package hudson.plugins.erlangcover.renderers;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import hudson.plugins.erlangcover.targets.CoveragePaint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Painted sources of a build, kept in a single file as gzip members with an index at the end:
+ * <code>
+ * magic, version,
+ * entries: gzip member of every painted source,
+ * index: entry count, entries (relative path, digest of the painting inputs, offset, length),
+ * index offset.
+ * </code>
+ * Entries are served gzip-compressed as they are stored. Version changes with the output of
+ * {@link PaintedSourceWriter}, so the entries of another version are not reused by {@link SourceCodePainter}.
+ *
+ * @author idubrov
+ */
+public final class SourcePack {
+    private static final int MAGIC = 0x45435350; // "ECSP"
+    private static final int VERSION = 1;
+    private static final int PREAMBLE_SIZE = 5;
+
+    /**
+     * Indexes read so far, by pack file.
+     */
+    private static final Cache<File, SourcePack> PACKS = CacheBuilder.newBuilder().softValues().build();
+
+    private final File file;
+    private final long lastModified;
+    private final Map<String, Entry> entries;
+
+    private static final class Entry {
+        private final String digest;
+        private final long offset;
+        private final int length;
+
+        Entry(String digest, long offset, int length) {
+            this.digest = digest;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private SourcePack(File file, long lastModified, Map<String, Entry> entries) {
+        this.file = file;
+        this.lastModified = lastModified;
+        this.entries = entries;
+    }
+
+    /**
+     * Opens the pack, reading its index.
+     *
+     * @return the pack or <code>null</code> if there is no pack file
+     */
+    public static SourcePack open(File file) throws IOException {
+        long lastModified = file.lastModified();
+        if (lastModified == 0) {
+            return null;
+        }
+        SourcePack pack = PACKS.getIfPresent(file);
+        if (pack == null || pack.lastModified != lastModified) {
+            pack = new SourcePack(file, lastModified, readIndex(file));
+            PACKS.put(file, pack);
+        }
+        return pack;
+    }
+
+    private static Map<String, Entry> readIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.readInt() != MAGIC || raf.readByte() != VERSION) {
+                throw new IOException("Not a painted sources pack: " + file);
+            }
+            long length = raf.length();
+            raf.seek(length - 8);
+            long indexOffset = raf.readLong();
+            if (indexOffset < PREAMBLE_SIZE || indexOffset > length - 8) {
+                throw new IOException("Painted sources pack is corrupted: " + file);
+            }
+            byte[] index = new byte[(int) (length - 8 - indexOffset)];
+            raf.seek(indexOffset);
+            raf.readFully(index);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+            int count = in.readInt();
+            Map<String, Entry> entries = new HashMap<String, Entry>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                entries.put(path, new Entry(in.readUTF(), in.readLong(), in.readInt()));
+            }
+            return entries;
+        } catch (EOFException e) {
+            throw new IOException("Painted sources pack is truncated: " + file, e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Computes the digest of the painting inputs: the source content, its encoding and the paint.
+     */
+    static String digest(File source, String encoding, CoveragePaint paint) throws IOException {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString(encoding);
+        InputStream in = new FileInputStream(source);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                hasher.putBytes(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return hasher.hash().toString() + ' ' + Long.toHexString(paint.getDigest());
+    }
+
+    /**
+     * Getter for property 'file'.
+     *
+     * @return Pack file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Getter for property 'lastModified'.
+     *
+     * @return Modification time of the pack file when its index was read.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public boolean contains(String path) {
+        return entries.containsKey(path);
+    }
+
+    /**
+     * Getter for property 'digests'.
+     *
+     * @return Digests of the painting inputs, by relative path of the source.
+     */
+    Map<String, String> getDigests() {
+        Map<String, String> result = new HashMap<String, String>(entries.size() * 2);
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().digest);
+        }
+        return result;
+    }
+
+    /**
+     * Transfers the gzip member of the source as it is stored.
+     *
+     * @return <code>false</code> if there is no such source
+     */
+    public boolean transferTo(String path, WritableByteChannel out) throws IOException {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            return false;
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long position = entry.offset;
+            long end = entry.offset + entry.length;
+            while (position < end) {
+                position += channel.transferTo(position, end - position, out);
+            }
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the painted source.
+     *
+     * @return the painted source or <code>null</code> if there is no such source
+     */
+    public byte[] read(String path) throws IOException {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            return null;
+        }
+        byte[] member = new byte[entry.length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(entry.offset);
+            raf.readFully(member);
+        } finally {
+            raf.close();
+        }
+        return ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(member)));
+    }
+
+    /**
+     * Writes the pack from the painting output of {@link SourceCodePainter}: records of relative path, digest,
+     * length and gzip member of the painted source, or length -1 for the source unchanged since the previous pack.
+     * Pack is written to a temporary file first, so readers never observe a partially written pack.
+     *
+     * @param previous pack of the previous build, entries of the unchanged sources are copied from it
+     */
+    static void write(File painted, SourcePack previous, File file) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            write(painted, previous, temp, file);
+        } finally {
+            // left by a failed write
+            temp.delete();
+        }
+    }
+
+    private static void write(File painted, SourcePack previous, File temp, File file) throws IOException {
+        Map<String, Entry> index = new TreeMap<String, Entry>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(painted)));
+        RandomAccessFile previousFile = null;
+        try {
+            if (previous != null) {
+                previousFile = new RandomAccessFile(previous.file, "r");
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                long offset = PREAMBLE_SIZE;
+                byte[] buffer = new byte[8192];
+                while (true) {
+                    String path;
+                    try {
+                        path = in.readUTF();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    String digest = in.readUTF();
+                    int length = in.readInt();
+                    if (length >= 0) {
+                        copy(in, out, length, buffer);
+                    } else {
+                        Entry entry = previous == null ? null : previous.entries.get(path);
+                        if (entry == null) {
+                            throw new IOException("Unchanged source " + path + " is not in the previous pack");
+                        }
+                        previousFile.seek(entry.offset);
+                        length = entry.length;
+                        copy(previousFile, out, length, buffer);
+                    }
+                    index.put(path, new Entry(digest, offset, length));
+                    offset += length;
+                }
+
+                out.writeInt(index.size());
+                for (Map.Entry<String, Entry> entry : index.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue().digest);
+                    out.writeLong(entry.getValue().offset);
+                    out.writeInt(entry.getValue().length);
+                }
+                out.writeLong(offset);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+            if (previousFile != null) {
+                previousFile.close();
+            }
+        }
+        if (!temp.renameTo(file)) {
+            // Windows cannot rename over an existing file
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Unable to save " + file);
+            }
+        }
+    }
+
+    /**
+     * Copies the given number of bytes.
+     */
+    private static void copy(DataInput in, OutputStream out, int length, byte[] buffer) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, buffer.length);
+            in.readFully(buffer, 0, n);
+            out.write(buffer, 0, n);
+            length -= n;
+        }
+    }
+}
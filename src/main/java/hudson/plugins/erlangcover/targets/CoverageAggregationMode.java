@@ -17,6 +17,10 @@ public enum CoverageAggregationMode {
         public Ratio aggregate(Ratio a, Ratio b) {
             return null;
         }
+
+        boolean aggregate(int[] numerators, int[] denominators, int index, int numerator, int denominator) {
+            return false;
+        }
     },
 
     /**
@@ -29,6 +33,12 @@ public enum CoverageAggregationMode {
         public Ratio aggregate(Ratio a, Ratio b) {
             return Ratio.create(a.numerator + b.numerator, a.denominator + b.denominator);
         }
+
+        boolean aggregate(int[] numerators, int[] denominators, int index, int numerator, int denominator) {
+            numerators[index] += numerator;
+            denominators[index] += denominator;
+            return true;
+        }
     },
 
     /**
@@ -39,6 +49,14 @@ public enum CoverageAggregationMode {
             if (b.denominator == 0)
                 return a;       // x/0 is treated as "no data"
             return Ratio.create(a.numerator + (b.numerator > 0 ? 1 : 0),    a.denominator + 1);
+        }
+
+        boolean aggregate(int[] numerators, int[] denominators, int index, int numerator, int denominator) {
+            if (denominator != 0) {
+                numerators[index] += (numerator > 0 ? 1 : 0);
+                denominators[index] += 1;
+            }
+            return true;
         }};
 
     /**
@@ -56,4 +74,12 @@ public enum CoverageAggregationMode {
      * the same as f(y,x)
      */
     public abstract Ratio aggregate(Ratio a, Ratio b);
+
+    /**
+     * Primitive form of {@link #aggregate(Ratio, Ratio)}. Aggregates the ratio into the running total stored at the
+     * index of the arrays, the total starts as zeros.
+     *
+     * @return whether the aggregation produces a value
+     */
+    abstract boolean aggregate(int[] numerators, int[] denominators, int index, int numerator, int denominator);
 }
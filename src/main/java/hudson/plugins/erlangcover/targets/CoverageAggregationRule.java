@@ -3,7 +3,9 @@ package hudson.plugins.erlangcover.targets;
 import hudson.plugins.erlangcover.Ratio;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 
 import static hudson.plugins.erlangcover.targets.CoverageAggregationMode.COUNT_NON_ZERO;
@@ -52,6 +54,27 @@ public class CoverageAggregationRule implements Serializable {
         return result;
     }
 
+    /**
+     * Gets the rules aggregating the input metric of the source element.
+     */
+    static CoverageAggregationRule[] getRules(CoverageElement source, CoverageMetric input) {
+        List<CoverageAggregationRule> rules = new ArrayList<CoverageAggregationRule>();
+        for (CoverageAggregationRule rule : INITIAL_RULESET) {
+            if (rule.source==source && rule.input==input) {
+                rules.add(rule);
+            }
+        }
+        return rules.toArray(new CoverageAggregationRule[rules.size()]);
+    }
+
+    CoverageAggregationMode getMode() {
+        return mode;
+    }
+
+    CoverageMetric getOutput() {
+        return output;
+    }
+
     // read (a,b,c,d) as "b metric of a is aggregated into d metric of the parent by using method c."
     // for example, line coverage of a Java method is SUMed up to the line coverage of a Java class (its parent) (1st line),
     // the method coverage of a Java class is # of methods that have some coverage among # of methods that have any code (3rd line.)
@@ -1,16 +1,20 @@
 package hudson.plugins.erlangcover.targets;
 
-import gnu.trove.iterator.TIntObjectIterator;
-import gnu.trove.map.TIntObjectMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import hudson.plugins.erlangcover.Ratio;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Line-by-line coverage information.
+ * <p/>
+ * Lines and hit counts are kept in parallel sorted arrays, so each painted line takes two ints.
  *
  * @author Stephen Connolly
  * @since 29-Aug-2007 17:44:29
@@ -21,73 +25,151 @@ public class CoveragePaint implements Serializable {
      * Generated
      */
     private static final long serialVersionUID = -6265259191856193735L;
-    private static final CoveragePaintDetails[] EMPTY = new CoveragePaintDetails[0];
-    private static class CoveragePaintDetails implements Serializable {
-        /**
-         * Generated
-         */
-        private static final long serialVersionUID = -8795145975629453028L;
-
-        /**
-         * Fly-weight object pool of (n,0,0) instances, which are very common.
-         */
-        private static final CoveragePaintDetails[] CONSTANTS = new CoveragePaintDetails[128];
-
-
-        /**
-         * Number of times this line is executed.
-         */
-        final int hitCount;
-
-        static CoveragePaintDetails create(int hitCount) {
-            if (0 <= hitCount && hitCount < CONSTANTS.length) {
-                CoveragePaintDetails r = CONSTANTS[hitCount];
-                if (r == null) CONSTANTS[hitCount] = r = new CoveragePaintDetails(hitCount);
-                return r;
-            }
-            return new CoveragePaintDetails(hitCount);
-        }
 
-        private CoveragePaintDetails(int hitCount) {
-            this.hitCount = hitCount;
-        }
+    private static final int[] EMPTY = new int[0];
 
-        /**
-         * Do 'this+that' and return the new object.
-         */
-        CoveragePaintDetails add(CoveragePaintDetails that) {
-            return CoveragePaintDetails.create(
-                    this.hitCount + that.hitCount);
-        }
-    }
-
-    private TIntObjectMap<CoveragePaintDetails> lines = new TIntObjectHashMap<CoveragePaintDetails>();
-    private Integer firstLine;
+    /**
+     * Painted lines in ascending order, only first <code>size</code> elements are used.
+     */
+    private int[] lines = EMPTY;
+    /**
+     * Hit counts of the painted lines.
+     */
+    private int[] hits = EMPTY;
+    private int size;
 
     public Integer getFirstLine() {
-        return firstLine;
+        return size > 0 ? lines[0] : null;
     }
 
-    private void paint(int line, CoveragePaintDetails delta) {
-        CoveragePaintDetails d = lines.get(line);
-        d = (d == null) ? delta : d.add(delta);
-        lines.put(line, d);
-
-        if (firstLine == null || line < firstLine) {
-            firstLine = line;
+    public void paint(int line, int hits) {
+        // lines are mostly painted in ascending order
+        if (size == 0 || lines[size - 1] < line) {
+            insert(size, line, hits);
+            return;
+        }
+        int index = indexOf(line);
+        if (index >= 0) {
+            this.hits[index] += hits;
+        } else {
+            insert(-index - 1, line, hits);
         }
     }
 
-    public void paint(int line, int hits) {
-        paint(line, CoveragePaintDetails.create(hits));
+    private void insert(int index, int line, int hits) {
+        if (size == lines.length) {
+            int capacity = Math.max(8, size * 2);
+            lines = copyOf(lines, capacity);
+            this.hits = copyOf(this.hits, capacity);
+        }
+        System.arraycopy(lines, index, lines, index + 1, size - index);
+        System.arraycopy(this.hits, index, this.hits, index + 1, size - index);
+        lines[index] = line;
+        this.hits[index] = hits;
+        size++;
     }
 
+    /**
+     * Adds hits of the other paint, merging the sorted lines of both paints in a single pass.
+     */
     public void add(CoveragePaint child) {
-        TIntObjectIterator<CoveragePaintDetails> it = child.lines.iterator();
-        while (it.hasNext()) {
-            it.advance();
-            paint(it.key(), it.value());
+        if (child.size == 0) {
+            return;
         }
+        int[] mergedLines = new int[size + child.size];
+        int[] mergedHits = new int[size + child.size];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < size || j < child.size) {
+            if (j == child.size || (i < size && lines[i] < child.lines[j])) {
+                mergedLines[k] = lines[i];
+                mergedHits[k] = hits[i];
+                i++;
+            } else if (i == size || child.lines[j] < lines[i]) {
+                mergedLines[k] = child.lines[j];
+                mergedHits[k] = child.hits[j];
+                j++;
+            } else {
+                mergedLines[k] = lines[i];
+                mergedHits[k] = hits[i] + child.hits[j];
+                i++;
+                j++;
+            }
+            k++;
+        }
+        lines = mergedLines;
+        hits = mergedHits;
+        size = k;
+    }
+
+    /**
+     * Sums up the paints into a new paint. Paints with disjoint line ranges, such as the functions of a module, are
+     * appended in order of their first line, overlapping ones are merged. The given list is left as it is.
+     */
+    static CoveragePaint sum(List<CoveragePaint> list) {
+        int total = 0;
+        for (CoveragePaint paint : list) {
+            total += paint.size;
+        }
+        List<CoveragePaint> paints = new ArrayList<CoveragePaint>(list);
+        Collections.sort(paints, FIRST_LINE);
+        CoveragePaint result = new CoveragePaint();
+        result.lines = new int[total];
+        result.hits = new int[total];
+        for (CoveragePaint paint : paints) {
+            if (paint.size == 0) {
+                continue;
+            }
+            if (result.size == 0 || result.lines[result.size - 1] < paint.lines[0]) {
+                if (result.lines.length < result.size + paint.size) {
+                    // grown by a merge of overlapping paints
+                    result.lines = copyOf(result.lines, total);
+                    result.hits = copyOf(result.hits, total);
+                }
+                System.arraycopy(paint.lines, 0, result.lines, result.size, paint.size);
+                System.arraycopy(paint.hits, 0, result.hits, result.size, paint.size);
+                result.size += paint.size;
+            } else {
+                result.add(paint);
+            }
+        }
+        return result;
+    }
+
+    private static final Comparator<CoveragePaint> FIRST_LINE = new Comparator<CoveragePaint>() {
+        public int compare(CoveragePaint a, CoveragePaint b) {
+            int lineA = a.size == 0 ? Integer.MIN_VALUE : a.lines[0];
+            int lineB = b.size == 0 ? Integer.MIN_VALUE : b.lines[0];
+            return lineA < lineB ? -1 : (lineA == lineB ? 0 : 1);
+        }
+    };
+
+    /**
+     * Binary search of the line.
+     *
+     * @return index of the line, or <code>(-(insertion point) - 1)</code> if the line is not painted
+     */
+    private int indexOf(int line) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (lines[mid] < line) {
+                low = mid + 1;
+            } else if (lines[mid] > line) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
     }
 
     /**
@@ -96,13 +178,21 @@ public class CoveragePaint implements Serializable {
      * @return Value for property 'lineCoverage'.
      */
     public Ratio getLineCoverage() {
+        return Ratio.create(getCoveredLineCount(), size);
+    }
+
+    int getCoveredLineCount() {
         int covered = 0;
-        for (CoveragePaintDetails d : lines.values(EMPTY)) {
-            if (d.hitCount > 0) {
+        for (int i = 0; i < size; i++) {
+            if (hits[i] > 0) {
                 covered++;
             }
         }
-        return Ratio.create(covered, lines.size());
+        return covered;
+    }
+
+    int getLineCount() {
+        return size;
     }
 
     /**
@@ -115,11 +205,33 @@ public class CoveragePaint implements Serializable {
     }
 
     public boolean isPainted(int line) {
-        return lines.get(line) != null;
+        return indexOf(line) >= 0;
     }
 
     public int getHits(int line) {
-        CoveragePaintDetails details = lines.get(line);
-        return (details != null) ? details.hitCount : 0;
+        int index = indexOf(line);
+        return (index >= 0) ? hits[index] : 0;
+    }
+
+    /**
+     * Getter for property 'digest'.
+     *
+     * @return Hash of the painted lines and their hits, same for equal paints.
+     */
+    public long getDigest() {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (int i = 0; i < size; i++) {
+            hasher.putInt(lines[i]).putInt(hits[i]);
+        }
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * Getter for property 'paintedLines'.
+     *
+     * @return Painted lines in ascending order.
+     */
+    int[] getPaintedLines() {
+        return copyOf(lines, size);
     }
 }
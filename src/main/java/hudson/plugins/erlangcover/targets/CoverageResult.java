@@ -2,37 +2,30 @@ package hudson.plugins.erlangcover.targets;
 
 import com.google.common.collect.Sets;
 import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
 import hudson.model.Api;
 import hudson.model.Run;
 import hudson.plugins.erlangcover.CoverBuildAction;
+import hudson.plugins.erlangcover.CoverageTrend;
 import hudson.plugins.erlangcover.Ratio;
 import hudson.plugins.erlangcover.renderers.SourceCodePainter;
+import hudson.plugins.erlangcover.renderers.SourcePack;
 import hudson.util.*;
-import org.jfree.chart.ChartFactory;
-import org.jfree.chart.JFreeChart;
-import org.jfree.chart.axis.CategoryAxis;
-import org.jfree.chart.axis.CategoryLabelPositions;
-import org.jfree.chart.axis.NumberAxis;
-import org.jfree.chart.plot.CategoryPlot;
-import org.jfree.chart.plot.PlotOrientation;
-import org.jfree.chart.renderer.category.LineAndShapeRenderer;
-import org.jfree.chart.title.LegendTitle;
-import org.jfree.data.category.CategoryDataset;
-import org.jfree.ui.RectangleEdge;
-import org.jfree.ui.RectangleInsets;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
-import java.awt.*;
+import javax.servlet.http.HttpServletResponse;
+
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.TreeMap;
@@ -57,39 +50,26 @@ public class CoverageResult implements Serializable {
      */
     private static final long serialVersionUID = -3524882671364156445L;
 
-    /**
-     * The type of the programming element.
-     */
-    private final CoverageElement element;
-    /**
-     * Name of the programming element that this result object represent, such as package name, class name, method name, etc.
-     */
-    private final String name;
-
-    // these two pointers form a tree structure where edges are names.
-    private final CoverageResult parent;
-    private final Map<String, CoverageResult> children = new TreeMap<String, CoverageResult>();
+    private final CoverageStore store;
+    private final int index;
 
-    private final Map<CoverageMetric, Ratio> aggregateResults = new EnumMap<CoverageMetric, Ratio>(CoverageMetric.class);
-    private final Map<CoverageMetric, Ratio> localResults = new EnumMap<CoverageMetric, Ratio>(CoverageMetric.class);
+    public CoverageResult(CoverageElement elementType, CoverageResult parent, String name) {
+        if (parent == null) {
+            this.store = new CoverageStore();
+            this.index = store.add(CoverageStore.NONE, elementType, name);
+        } else {
+            this.store = parent.store;
+            this.index = store.add(parent.index, elementType, name);
+        }
+        store.register(index, this);
+    }
 
     /**
-     * Line-by-line coverage information. Computed lazily, since it's memory intensive.
+     * Creates a view of the stored node, use {@link CoverageStore#view(int)} to get one.
      */
-    private final CoveragePaint paint;
-    private String relativeSourcePath;
-
-    public AbstractBuild<?, ?> owner = null;
-
-    public CoverageResult(CoverageElement elementType, CoverageResult parent, String name) {
-        this.element = elementType;
-        this.paint = CoveragePaintRule.makePaint(element);
-        this.parent = parent;
-        this.name = name;
-        this.relativeSourcePath = null;
-        if (this.parent != null) {
-            this.parent.children.put(name, this);
-        }
+    CoverageResult(CoverageStore store, int index) {
+        this.store = store;
+        this.index = index;
     }
 
     /**
@@ -98,7 +78,8 @@ public class CoverageResult implements Serializable {
      * @return Value for property 'relativeSourcePath'.
      */
     public String getRelativeSourcePath() {
-        return relativeSourcePath;
+        CoverageResult n = resolve();
+        return n.store.getPath(n.index);
     }
 
     /**
@@ -107,7 +88,7 @@ public class CoverageResult implements Serializable {
      * @param relativeSourcePath Value to set for property 'relativeSourcePath'.
      */
     public void setRelativeSourcePath(String relativeSourcePath) {
-        this.relativeSourcePath = relativeSourcePath;
+        store.setPath(index, relativeSourcePath);
     }
 
     /**
@@ -116,10 +97,15 @@ public class CoverageResult implements Serializable {
      * @return Value for property 'name'.
      */
     public String getName() {
+        String name = store.getName(index);
         return name == null || name.trim().length() == 0 ? Messages.CoverageElement_Project() : name;
     }
 
     public Integer getLine() {
+        if (store.getLoader(index) != null) {
+            return store.getSummaryLine(index);
+        }
+        CoveragePaint paint = store.getAggregatePaint(index);
         return (paint != null) ? paint.getFirstLine() : null;
     }
 
@@ -129,7 +115,12 @@ public class CoverageResult implements Serializable {
      * @return Value for property 'parent'.
      */
     public CoverageResult getParent() {
-        return parent;
+        int parent = store.getParent(index);
+        if (parent == CoverageStore.NONE) {
+            CoverageResult mount = store.getMount();
+            return mount == null ? null : mount.getParent();
+        }
+        return store.view(parent);
     }
 
     /**
@@ -138,7 +129,7 @@ public class CoverageResult implements Serializable {
      * @return Value for property 'element'.
      */
     public CoverageElement getElement() {
-        return element;
+        return store.getElement(index);
     }
 
     /**
@@ -147,7 +138,7 @@ public class CoverageResult implements Serializable {
      * @return Value for property 'sourceCodeLevel'.
      */
     public boolean isSourceCodeLevel() {
-        return relativeSourcePath != null;
+        return getRelativeSourcePath() != null;
     }
 
     /**
@@ -156,13 +147,22 @@ public class CoverageResult implements Serializable {
      * @return Value for property 'paint'.
      */
     public CoveragePaint getPaint() {
-        return paint;
+        CoverageResult n = resolve();
+        return n.store.getAggregatePaint(n.index);
+    }
+
+    /**
+     * Getter for property 'localPaint'.
+     *
+     * @return Paint of this element without the paint of its children.
+     */
+    CoveragePaint getLocalPaint() {
+        CoverageResult n = resolve();
+        return n.store.getPaint(n.index);
     }
 
     public void paint(int line, int hits) {
-        if (paint != null) {
-            paint.paint(line, hits);
-        }
+        store.paint(index, line, hits);
     }
 
     /**
@@ -171,7 +171,21 @@ public class CoverageResult implements Serializable {
      * @return The file where the source file should be (if it exists)
      */
     private File getSourceFile() {
-        return new File(SourceCodePainter.paintedSourcesDirectory(owner), relativeSourcePath);
+        return new File(SourceCodePainter.paintedSourcesDirectory(getOwner()), getRelativeSourcePath());
+    }
+
+    /**
+     * Gets the painted sources of the build.
+     *
+     * @return the pack or <code>null</code> if the build has none, such as the builds painted into
+     *         {@link SourceCodePainter#paintedSourcesDirectory(AbstractBuild)}
+     */
+    private SourcePack getSourcePack() {
+        try {
+            return SourcePack.open(SourceCodePainter.paintedSourcesPack(getOwner()));
+        } catch (IOException e) {
+            return null;
+        }
     }
 
     /**
@@ -180,9 +194,30 @@ public class CoverageResult implements Serializable {
      * @return Value for property 'sourceFileAvailable'.
      */
     public boolean isSourceFileAvailable() {
+        String path = getRelativeSourcePath();
+        if (path == null) {
+            return false;
+        }
+        SourcePack pack = getSourcePack();
+        if (pack != null) {
+            return pack.contains(path);
+        }
+        AbstractBuild<?, ?> owner = getOwner();
         return owner == owner.getProject().getLastSuccessfulBuild() && getSourceFile().exists();
     }
 
+    /**
+     * Getter for property 'sourceFilePacked'.
+     *
+     * @return <code>true</code> if the painted source is kept in the pack of the build, so the page loads it from
+     *         {@link #doCoverageHighlightedSource(StaplerRequest, StaplerResponse)} as it is stored.
+     */
+    public boolean isSourceFilePacked() {
+        String path = getRelativeSourcePath();
+        SourcePack pack = path == null ? null : getSourcePack();
+        return pack != null && pack.contains(path);
+    }
+
     /**
      * Getter for property 'sourceFileContent'.
      *
@@ -190,6 +225,11 @@ public class CoverageResult implements Serializable {
      */
     public String getSourceFileContent() {
         try {
+            SourcePack pack = getSourcePack();
+            if (pack != null) {
+                byte[] content = pack.read(getRelativeSourcePath());
+                return content == null ? null : new String(content, "UTF-8");
+            }
             return new TextFile(getSourceFile()).read();
         } catch (IOException e) {
             return null;
@@ -218,28 +258,35 @@ public class CoverageResult implements Serializable {
      * @return Value for property 'childElements'.
      */
     public Set<CoverageElement> getChildElements() {
+        CoverageResult n = resolve();
         Set<CoverageElement> result = EnumSet.noneOf(CoverageElement.class);
-        for (CoverageResult child : children.values()) {
-            result.add(child.element);
+        for (int child = n.store.getFirstChild(n.index); child != CoverageStore.NONE; child = n.store.getNextSibling(child)) {
+            result.add(n.store.getElement(child));
         }
         return result;
     }
 
     public Set<String> getChildren(CoverageElement element) {
+        CoverageResult n = resolve();
         Set<String> result = new TreeSet<String>();
-        for (CoverageResult child : children.values()) {
-            if (child.element.equals(element)) {
-                result.add(child.name);
+        for (int child = n.store.getFirstChild(n.index); child != CoverageStore.NONE; child = n.store.getNextSibling(child)) {
+            if (n.store.getElement(child).equals(element)) {
+                result.add(n.store.getName(child));
             }
         }
         return result;
     }
 
     public Set<CoverageMetric> getChildMetrics(CoverageElement element) {
+        CoverageResult n = resolve();
         Set<CoverageMetric> result = EnumSet.noneOf(CoverageMetric.class);
-        for (CoverageResult child : children.values()) {
-            if (child.element.equals(element)) {
-                result.addAll(child.getMetrics());
+        for (int child = n.store.getFirstChild(n.index); child != CoverageStore.NONE; child = n.store.getNextSibling(child)) {
+            if (n.store.getElement(child).equals(element)) {
+                for (CoverageMetric metric : CoverageMetric.values()) {
+                    if (n.store.hasAggregate(child, metric)) {
+                        result.add(metric);
+                    }
+                }
             }
         }
         return result;
@@ -251,16 +298,26 @@ public class CoverageResult implements Serializable {
      * @return Value for keys of property 'children'.
      */
     public Set<String> getChildren() {
-        return children.keySet();
+        CoverageResult n = resolve();
+        Set<String> result = new TreeSet<String>();
+        for (int child = n.store.getFirstChild(n.index); child != CoverageStore.NONE; child = n.store.getNextSibling(child)) {
+            result.add(n.store.getName(child));
+        }
+        return result;
     }
 
     /**
      * Getter for property 'children'.
      *
-     * @return Value for property 'children'.
+     * @return Value for property 'children', sorted by name.
      */
     public Map<String, CoverageResult> getChildrenReal() {
-        return children;
+        CoverageResult n = resolve();
+        Map<String, CoverageResult> result = new TreeMap<String, CoverageResult>();
+        for (int child = n.store.getFirstChild(n.index); child != CoverageStore.NONE; child = n.store.getNextSibling(child)) {
+            result.put(n.store.getName(child), n.store.view(child));
+        }
+        return result;
     }
 
     /**
@@ -269,7 +326,7 @@ public class CoverageResult implements Serializable {
      * @return Value for property 'results'.
      */
     public Map<CoverageMetric, Ratio> getResults() {
-        return Collections.unmodifiableMap(aggregateResults);
+        return Collections.unmodifiableMap(store.getAggregateResults(index));
     }
 
     /**
@@ -279,7 +336,7 @@ public class CoverageResult implements Serializable {
      */
     @Exported(name = "results")
     public CoverageTree getResultsAPI() {
-        return new CoverageTree(name, aggregateResults, children);
+        return new CoverageTree(store.getName(index), store.getAggregateResults(index), getChildrenReal());
     }
 
     public String urlTransform(String name) {
@@ -312,19 +369,22 @@ public class CoverageResult implements Serializable {
     }
 
     public CoverageResult getChild(String name) {
-        return children.get(name);
+        CoverageResult n = resolve();
+        int child = n.store.child(n.index, name);
+        return child == CoverageStore.NONE ? null : n.store.view(child);
     }
 
     public CoverageResult createChild(CoverageElement type, String name) {
-        CoverageResult child = children.get(name);
-        if (child == null) {
-            child = new CoverageResult(type, this, name);
+        CoverageResult n = resolve();
+        int child = n.store.child(n.index, name);
+        if (child == CoverageStore.NONE) {
+            child = n.store.add(n.index, type, name);
         }
-        return child;
+        return n.store.view(child);
     }
 
     public Ratio getCoverage(CoverageMetric metric) {
-        return aggregateResults.get(metric);
+        return store.getAggregate(index, metric);
     }
 
     /**
@@ -333,15 +393,46 @@ public class CoverageResult implements Serializable {
      * @return Value for property 'metrics'.
      */
     public Set<CoverageMetric> getMetrics() {
-        return Sets.immutableEnumSet(aggregateResults.keySet());
+        return Sets.immutableEnumSet(store.getAggregateResults(index).keySet());
+    }
+
+    /**
+     * Getter for property 'localResults'.
+     *
+     * @return Value for property 'localResults'.
+     */
+    Map<CoverageMetric, Ratio> getLocalResults() {
+        CoverageResult n = resolve();
+        return Collections.unmodifiableMap(n.store.getLocalResults(n.index));
     }
 
     public void updateMetric(CoverageMetric metric, Ratio additionalResult) {
-        if (localResults.containsKey(metric)) {
-            Ratio existingResult = localResults.get(metric);
-            localResults.put(metric, CoverageAggregationRule.combine(metric, existingResult, additionalResult));
+        Ratio existingResult = store.getLocal(index, metric);
+        if (existingResult != null) {
+            store.setLocal(index, metric, CoverageAggregationRule.combine(metric, existingResult, additionalResult));
         } else {
-            localResults.put(metric, additionalResult);
+            store.setLocal(index, metric, additionalResult);
+        }
+    }
+
+    /**
+     * Merges the other tree into this one. Paints and local results are summed up, missing children are created.
+     *
+     * @param other tree to merge, it is left intact
+     */
+    public void merge(CoverageResult other) {
+        other = other.resolve();
+        if (store.getPath(index) == null) {
+            store.setPath(index, other.store.getPath(other.index));
+        }
+        store.addPaint(index, other.store.getPaint(other.index));
+        for (Map.Entry<CoverageMetric, Ratio> otherResult : other.store.getLocalResults(other.index).entrySet()) {
+            updateMetric(otherResult.getKey(), otherResult.getValue());
+        }
+        CoverageStore otherStore = other.store;
+        for (int child = otherStore.getFirstChild(other.index); child != CoverageStore.NONE;
+             child = otherStore.getNextSibling(child)) {
+            createChild(otherStore.getElement(child), otherStore.getName(child)).merge(otherStore.view(child));
         }
     }
 
@@ -351,32 +442,88 @@ public class CoverageResult implements Serializable {
      * @return Value for property 'owner'.
      */
     public AbstractBuild<?, ?> getOwner() {
-        return owner;
+        return store.getOwner();
     }
 
     /**
-     * Setter for property 'owner'.
+     * Setter for property 'owner'. Also aggregates the results of the tree, if it has changed since the last time.
+     * The owner can be set on a frozen tree too.
      *
      * @param owner Value to set for property 'owner'.
      */
     public void setOwner(AbstractBuild<?, ?> owner) {
-        this.owner = owner;
-        aggregateResults.clear();
-        for (CoverageResult child : children.values()) {
-            child.setOwner(owner);
-            if (paint != null && child.paint != null && CoveragePaintRule.propagatePaintToParent(child.element)) {
-                paint.add(child.paint);
-            }
-            for (Map.Entry<CoverageMetric, Ratio> childResult : child.aggregateResults.entrySet()) {
-                aggregateResults.putAll(CoverageAggregationRule.aggregate(child.getElement(),
-                        childResult.getKey(), childResult.getValue(), aggregateResults));
-            }
+        store.setOwner(owner);
+        store.aggregate();
+    }
+
+    /**
+     * Aggregates the results of the tree, if it has changed since the last time.
+     */
+    void aggregate() {
+        store.aggregate();
+    }
+
+    /**
+     * Aggregates the results and makes the tree immutable. Frozen tree can be shared between threads, it is read
+     * without locking; any change of the tree throws {@link IllegalStateException}.
+     */
+    public void freeze() {
+        store.freeze();
+    }
+
+    public boolean isFrozen() {
+        return store.isFrozen();
+    }
+
+    /**
+     * Getter for property 'estimatedSize'.
+     *
+     * @return Estimated heap retained by the tree, in bytes. Subtrees not loaded yet are not counted.
+     */
+    public long getEstimatedSize() {
+        return store.estimateSize();
+    }
+
+    /**
+     * Sets the callback run every time the estimated size of the tree grows, that is once a subtree of a node
+     * restored from a summary is loaded.
+     */
+    public void setResizeListener(Runnable listener) {
+        store.setResizeListener(listener);
+    }
+
+    /**
+     * Restores the aggregated results of the node without its subtree. Children and paint are loaded on first
+     * access, or never if the loader is null.
+     *
+     * @param results aggregated results of the node
+     * @param line    first line of the aggregated paint
+     * @param loader  loads the rest of the node
+     */
+    void restoreSummary(Map<CoverageMetric, Ratio> results, Integer line, SubtreeLoader loader) {
+        store.restoreSummary(index, results, line, loader);
+    }
+
+    /**
+     * Mounts the tree loaded for the summarized node in place of its subtree and freezes it. Loaded tree uses the
+     * summarized node as its root, so the children of the subtree report it as their parent.
+     */
+    void mount(CoverageResult summary) {
+        store.mount(summary);
+    }
+
+    /**
+     * Gets the node holding the children and paint of this node: the node itself, or the root of the loaded
+     * subtree if this node is restored from a summary.
+     */
+    private CoverageResult resolve() {
+        if (store.getLoader(index) == null) {
+            return this;
         }
-        // override any local results (as they should be more accurate than the aggregated ones)
-        aggregateResults.putAll(localResults);
-        // now inject any results from CoveragePaint as they should be most accurate.
-        if (paint != null) {
-            aggregateResults.putAll(paint.getResults());
+        try {
+            return store.getSubtree(index);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to load coverage of " + getName(), e);
         }
     }
 
@@ -386,7 +533,9 @@ public class CoverageResult implements Serializable {
      * @return Value for property 'previousResult'.
      */
     public CoverageResult getPreviousResult() {
+        CoverageResult parent = getParent();
         if (parent == null) {
+            AbstractBuild<?, ?> owner = getOwner();
             if (owner == null) {
                 return null;
             }
@@ -404,91 +553,88 @@ public class CoverageResult implements Serializable {
             return action.getResult();
         } else {
             CoverageResult prevParent = parent.getPreviousResult();
-            return prevParent == null ? null : prevParent.getChild(name);
+            return prevParent == null ? null : prevParent.getChild(store.getName(index));
         }
     }
 
     public Object getDynamic(String token, StaplerRequest req, StaplerResponse rsp) throws IOException {
-        token = token.toLowerCase();
-        for (String name : children.keySet()) {
-            if (urlTransform(name).toLowerCase().equals(token)) {
-                return getChild(name);
+        CoverageResult n = resolve();
+        int child = n.store.childByToken(n.index, token);
+        return child == CoverageStore.NONE ? null : n.store.view(child);
+    }
+
+    /**
+     * Serves the painted source rows. Browsers accepting gzip get the rows compressed as they are stored.
+     */
+    public void doCoverageHighlightedSource(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        String path = getRelativeSourcePath();
+        SourcePack pack = getSourcePack();
+        if (path == null || pack == null || !pack.contains(path)) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        rsp.setHeader("Vary", "Accept-Encoding");
+        if (req.checkIfModified(pack.getLastModified(), rsp)) {
+            return;
+        }
+        rsp.setContentType("text/html;charset=UTF-8");
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        OutputStream out = rsp.getOutputStream();
+        try {
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                rsp.setHeader("Content-Encoding", "gzip");
+                pack.transferTo(path, Channels.newChannel(out));
+            } else {
+                out.write(pack.read(path));
             }
+        } finally {
+            out.close();
         }
-        return null;
     }
 
-    public void doCoverageHighlightedSource(StaplerRequest req, StaplerResponse rsp) throws IOException {
-        // TODO
+    /**
+     * Whether the trend up to this report has more than one build, read from the job trend or the module history
+     * without loading previous results. Trend of a function is drawn from the builds of its module history.
+     */
+    public boolean isTrendAvailable() {
+        AbstractBuild<?, ?> owner = getOwner();
+        AbstractProject<?, ?> project = owner.getProject();
+        List<CoverageTrend.Entry> entries;
+        switch (getElement()) {
+            case PROJECT:
+                entries = CoverageTrend.getEntries(project, owner.getNumber());
+                break;
+            case ERLANG_MODULE:
+                entries = CoverageTrend.getEntries(project, store.getName(index), owner.getNumber());
+                break;
+            default:
+                entries = CoverageTrend.getEntries(project, getParent().store.getName(getParent().index),
+                        owner.getNumber());
+                break;
+        }
+        return entries.size() > 1;
     }
 
     /**
      * Generates the graph that shows the coverage trend up to this report.
      */
     public Graph getGraph() throws IOException {
-        final DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> dsb = new DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel>();
-        for (CoverageResult a = this; a != null; a = a.getPreviousResult()) {
-            ChartUtil.NumberOnlyBuildLabel label = new ChartUtil.NumberOnlyBuildLabel(a.getOwner());
-            for (Map.Entry<CoverageMetric, Ratio> value : a.aggregateResults.entrySet()) {
-                dsb.add(value.getValue().getPercentageFloat(), value.getKey().getDisplayName(), label);
-            }
+        AbstractBuild<?, ?> owner = getOwner();
+        AbstractProject<?, ?> project = owner.getProject();
+        List<CoverageTrend.Entry> entries;
+        switch (getElement()) {
+            case PROJECT:
+                entries = CoverageTrend.getEntries(project, owner.getNumber());
+                break;
+            case ERLANG_MODULE:
+                entries = CoverageTrend.getEntries(project, store.getName(index), owner.getNumber());
+                break;
+            default:
+                entries = CoverageTrend.getEntries(project, getParent().store.getName(getParent().index),
+                        store.getName(index), owner.getNumber());
+                break;
         }
-        return new Graph(getOwner().getTimestamp(), 500, 200) {
-            @Override
-            protected JFreeChart createGraph() {
-                return createChart(dsb.build());
-            }
-        };
-    }
-
-    private JFreeChart createChart(CategoryDataset dataset) {
-
-        final JFreeChart chart = ChartFactory.createLineChart(
-                null,                   // chart title
-                null,                   // unused
-                "%",                    // range axis label
-                dataset,                  // data
-                PlotOrientation.VERTICAL, // orientation
-                true,                     // include legend
-                true,                     // tooltips
-                false                     // urls
-        );
-
-        // NOW DO SOME OPTIONAL CUSTOMISATION OF THE CHART...
-
-        final LegendTitle legend = chart.getLegend();
-        legend.setPosition(RectangleEdge.RIGHT);
-
-        chart.setBackgroundPaint(Color.white);
-
-        final CategoryPlot plot = chart.getCategoryPlot();
-
-        // plot.setAxisOffset(new Spacer(Spacer.ABSOLUTE, 5.0, 5.0, 5.0, 5.0));
-        plot.setBackgroundPaint(Color.WHITE);
-        plot.setOutlinePaint(null);
-        plot.setRangeGridlinesVisible(true);
-        plot.setRangeGridlinePaint(Color.black);
-
-        CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
-        plot.setDomainAxis(domainAxis);
-        domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
-        domainAxis.setLowerMargin(0.0);
-        domainAxis.setUpperMargin(0.0);
-        domainAxis.setCategoryMargin(0.0);
-
-        final NumberAxis rangeAxis = (NumberAxis) plot.getRangeAxis();
-        rangeAxis.setStandardTickUnits(NumberAxis.createIntegerTickUnits());
-        rangeAxis.setUpperBound(100);
-        rangeAxis.setLowerBound(0);
-
-        final LineAndShapeRenderer renderer = (LineAndShapeRenderer) plot.getRenderer();
-        renderer.setBaseStroke(new BasicStroke(2.0f));
-        ColorPalette.apply(renderer);
-
-        // crop extra space around the graph
-        plot.setInsets(new RectangleInsets(5.0, 0, 0, 5.0));
-
-        return chart;
+        return CoverBuildAction.createGraph(entries);
     }
 
     /**
@@ -499,9 +645,11 @@ public class CoverageResult implements Serializable {
     public Map<String, CoveragePaint> getPaintedSources() {
         Map<String, CoveragePaint> result = new HashMap<String, CoveragePaint>();
         // check the children
-        for (CoverageResult child : children.values()) {
+        for (CoverageResult child : getChildrenReal().values()) {
             result.putAll(child.getPaintedSources());
         }
+        String relativeSourcePath = getRelativeSourcePath();
+        CoveragePaint paint = getPaint();
         if (relativeSourcePath != null && paint != null) {
             result.put(relativeSourcePath, paint);
         }
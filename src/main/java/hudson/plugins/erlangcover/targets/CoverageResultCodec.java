@@ -0,0 +1,438 @@
+package hudson.plugins.erlangcover.targets;
+
+import com.google.common.io.Files;
+import hudson.plugins.erlangcover.Ratio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of the {@link CoverageResult} tree.
+ * <p/>
+ * Only the parsed data of the tree is encoded, aggregated results are encoded as summaries. The root and every
+ * child of the root are encoded into separate blocks, so a single child can be decoded without the rest of the
+ * tree:
+ * <code>
+ * magic, version, header length,
+ * header: root block, root summary, child count, child entries (element, name, summary, first line, block length),
+ * child blocks.
+ * </code>
+ * Summary is the aggregated results (and paint, for the root) of the node, so the tree can be displayed with only
+ * the header decoded. Within a block, nodes are stored in pre-order as columns of primitive values:
+ * <code>
+ * string table,
+ * node count,
+ * element, child count, name, source path columns,
+ * local metrics column,
+ * paint column (line count, delta-encoded lines, hits).
+ * </code>
+ * All integers except the preamble are stored as unsigned variable-length integers.
+ *
+ * @author idubrov
+ */
+public class CoverageResultCodec {
+    private static final int MAGIC = 0x45434f56; // "ECOV"
+    private static final int VERSION = 2;
+    private static final int PREAMBLE_SIZE = 9;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Do not instantiate CoverageResultCodec.
+     */
+    private CoverageResultCodec() {
+    }
+
+    public static byte[] encode(CoverageResult root) {
+        root.aggregate();
+
+        Output header = new Output();
+        encodeBlock(root, false, header);
+        writeResults(root.getResults(), header);
+        writePaint(root.getPaint(), header);
+
+        Output blocks = new Output();
+        Map<String, CoverageResult> children = root.getChildrenReal();
+        header.writeVarInt(children.size());
+        for (CoverageResult child : children.values()) {
+            Integer line = child.getLine();
+
+            int start = blocks.size();
+            encodeBlock(child, true, blocks);
+            header.write(child.getElement().ordinal());
+            header.writeString(child.getName());
+            writeResults(child.getResults(), header);
+            header.writeVarInt(line == null ? 0 : line + 1);
+            header.writeVarInt(blocks.size() - start);
+        }
+
+        Output out = new Output();
+        out.writeInt(MAGIC);
+        out.write(VERSION);
+        out.writeInt(header.size());
+        out.write(header.toByteArray(), 0, header.size());
+        out.write(blocks.toByteArray(), 0, blocks.size());
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes the whole tree.
+     */
+    public static CoverageResult decode(ByteBuffer in) throws IOException {
+        try {
+            readPreamble(in);
+            CoverageResult root = decodeBlock(in, null);
+            readResults(in);
+            skipPaint(in);
+
+            int count = readVarInt(in);
+            CoverageResult[] children = new CoverageResult[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                children[i] = new CoverageResult(readElement(in), root, readString(in));
+                readResults(in);
+                readVarInt(in);
+                lengths[i] = readVarInt(in);
+            }
+            for (int i = 0; i < count; i++) {
+                int end = in.position() + lengths[i];
+                decodeBlock(in, children[i]);
+                in.position(end);
+            }
+            return root;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Coverage snapshot is truncated", e);
+        } catch (RuntimeException e) {
+            throw new IOException("Coverage snapshot is corrupted", e);
+        }
+    }
+
+    /**
+     * Loads the tree from the snapshot file. Only the header is read: the root and its children are restored
+     * from their summaries, and the subtree of a child is read from the file when the child is accessed.
+     */
+    public static CoverageResult load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] preamble = new byte[PREAMBLE_SIZE];
+            raf.readFully(preamble);
+            int headerLength = readPreamble(ByteBuffer.wrap(preamble));
+            byte[] header = new byte[headerLength];
+            raf.readFully(header);
+            return decodeHeader(ByteBuffer.wrap(header), file, PREAMBLE_SIZE + headerLength);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static CoverageResult decodeHeader(ByteBuffer in, File file, long offset) throws IOException {
+        try {
+            CoverageResult local = decodeBlock(in, null);
+            CoverageResult root = new CoverageResult(local.getElement(), null, local.getName());
+            root.setRelativeSourcePath(local.getRelativeSourcePath());
+            Map<CoverageMetric, Ratio> results = readResults(in);
+            readPaint(in, root);
+            root.restoreSummary(results, null, null);
+
+            int count = readVarInt(in);
+            for (int i = 0; i < count; i++) {
+                CoverageResult child = new CoverageResult(readElement(in), root, readString(in));
+                results = readResults(in);
+                int line = readVarInt(in);
+                int length = readVarInt(in);
+                child.restoreSummary(results, line == 0 ? null : line - 1, new BlockLoader(file, offset, length));
+                offset += length;
+            }
+            return root;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Coverage snapshot is truncated", e);
+        } catch (RuntimeException e) {
+            throw new IOException("Coverage snapshot is corrupted", e);
+        }
+    }
+
+    /**
+     * Reads the block of a single child of the root from the snapshot file.
+     */
+    private static class BlockLoader implements SubtreeLoader {
+        private final File file;
+        private final long offset;
+        private final int length;
+
+        BlockLoader(File file, long offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public CoverageResult load(CoverageResult node) throws IOException {
+            byte[] block = new byte[length];
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(offset);
+                raf.readFully(block);
+            } finally {
+                raf.close();
+            }
+            try {
+                CoverageResult subtree = new CoverageResult(node.getElement(), null, node.getName());
+                decodeBlock(ByteBuffer.wrap(block), subtree);
+                subtree.mount(node);
+                return subtree;
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Coverage snapshot is truncated", e);
+            } catch (RuntimeException e) {
+                throw new IOException("Coverage snapshot is corrupted", e);
+            }
+        }
+    }
+
+    /**
+     * Saves encoded tree to the snapshot file. Data is written to a temporary file first, so readers never
+     * observe a partially written snapshot.
+     */
+    public static void save(byte[] encoded, File file) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.write(encoded, temp);
+        if (!temp.renameTo(file)) {
+            // Windows cannot rename over an existing file
+            if (!file.delete() || !temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Unable to save " + file);
+            }
+        }
+    }
+
+    private static int readPreamble(ByteBuffer in) throws IOException {
+        if (in.getInt() != MAGIC || in.get() != VERSION) {
+            throw new IOException("Not a coverage snapshot");
+        }
+        return in.getInt();
+    }
+
+    private static void encodeBlock(CoverageResult top, boolean withChildren, Output out) {
+        List<CoverageResult> nodes = new ArrayList<CoverageResult>();
+        if (withChildren) {
+            collect(top, nodes);
+        } else {
+            nodes.add(top);
+        }
+
+        Map<String, Integer> strings = new HashMap<String, Integer>();
+        List<String> table = new ArrayList<String>();
+        for (CoverageResult node : nodes) {
+            intern(node.getName(), strings, table);
+            intern(node.getRelativeSourcePath(), strings, table);
+        }
+
+        out.writeVarInt(table.size());
+        for (String s : table) {
+            out.writeString(s);
+        }
+
+        out.writeVarInt(nodes.size());
+        for (CoverageResult node : nodes) {
+            out.write(node.getElement().ordinal());
+        }
+        for (CoverageResult node : nodes) {
+            out.writeVarInt(withChildren ? node.getChildrenReal().size() : 0);
+        }
+        for (CoverageResult node : nodes) {
+            out.writeVarInt(strings.get(node.getName()));
+        }
+        for (CoverageResult node : nodes) {
+            // 0 is reserved for null
+            String path = node.getRelativeSourcePath();
+            out.writeVarInt(path == null ? 0 : strings.get(path) + 1);
+        }
+        for (CoverageResult node : nodes) {
+            writeResults(node.getLocalResults(), out);
+        }
+        for (CoverageResult node : nodes) {
+            writePaint(node.getLocalPaint(), out);
+        }
+    }
+
+    /**
+     * Decodes the block. If the top node is given, the first node of the block is decoded into it rather than
+     * created.
+     */
+    private static CoverageResult decodeBlock(ByteBuffer in, CoverageResult top) {
+        String[] table = new String[readVarInt(in)];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = readString(in);
+        }
+
+        int count = readVarInt(in);
+        CoverageElement[] elements = new CoverageElement[count];
+        for (int i = 0; i < count; i++) {
+            elements[i] = readElement(in);
+        }
+        int[] childCounts = new int[count];
+        for (int i = 0; i < count; i++) {
+            childCounts[i] = readVarInt(in);
+        }
+
+        // rebuild the tree from the pre-order
+        CoverageResult[] nodes = new CoverageResult[count];
+        CoverageResult[] parents = new CoverageResult[count];
+        int[] remaining = new int[count];
+        int depth = -1;
+        for (int i = 0; i < count; i++) {
+            String name = table[readVarInt(in)];
+            if (i == 0 && top != null) {
+                nodes[i] = top;
+            } else {
+                nodes[i] = new CoverageResult(elements[i], (depth >= 0) ? parents[depth] : null, name);
+            }
+            if (depth >= 0 && --remaining[depth] == 0) {
+                depth--;
+            }
+            if (childCounts[i] > 0) {
+                depth++;
+                parents[depth] = nodes[i];
+                remaining[depth] = childCounts[i];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            int path = readVarInt(in);
+            if (path != 0) {
+                nodes[i].setRelativeSourcePath(table[path - 1]);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            for (Map.Entry<CoverageMetric, Ratio> result : readResults(in).entrySet()) {
+                nodes[i].updateMetric(result.getKey(), result.getValue());
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            readPaint(in, nodes[i]);
+        }
+        return count > 0 ? nodes[0] : null;
+    }
+
+    private static void writeResults(Map<CoverageMetric, Ratio> results, Output out) {
+        int mask = 0;
+        for (CoverageMetric metric : results.keySet()) {
+            mask |= 1 << metric.ordinal();
+        }
+        out.writeVarInt(mask);
+        for (Ratio ratio : results.values()) {
+            out.writeVarInt(ratio.numerator);
+            out.writeVarInt(ratio.denominator);
+        }
+    }
+
+    private static Map<CoverageMetric, Ratio> readResults(ByteBuffer in) {
+        Map<CoverageMetric, Ratio> results = new EnumMap<CoverageMetric, Ratio>(CoverageMetric.class);
+        int mask = readVarInt(in);
+        for (CoverageMetric metric : CoverageMetric.values()) {
+            if ((mask & (1 << metric.ordinal())) != 0) {
+                results.put(metric, Ratio.create(readVarInt(in), readVarInt(in)));
+            }
+        }
+        return results;
+    }
+
+    private static void writePaint(CoveragePaint paint, Output out) {
+        int[] lines = (paint != null) ? paint.getPaintedLines() : new int[0];
+        out.writeVarInt(lines.length);
+        int previous = 0;
+        for (int line : lines) {
+            out.writeVarInt(line - previous);
+            previous = line;
+        }
+        for (int line : lines) {
+            out.writeVarInt(paint.getHits(line));
+        }
+    }
+
+    private static void readPaint(ByteBuffer in, CoverageResult node) {
+        int length = readVarInt(in);
+        int[] lines = new int[length];
+        int line = 0;
+        for (int j = 0; j < length; j++) {
+            line += readVarInt(in);
+            lines[j] = line;
+        }
+        for (int j = 0; j < length; j++) {
+            node.paint(lines[j], readVarInt(in));
+        }
+    }
+
+    private static void skipPaint(ByteBuffer in) {
+        int length = readVarInt(in);
+        for (int j = 0; j < length * 2; j++) {
+            readVarInt(in);
+        }
+    }
+
+    private static CoverageElement readElement(ByteBuffer in) {
+        return CoverageElement.values()[in.get()];
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void collect(CoverageResult node, List<CoverageResult> nodes) {
+        nodes.add(node);
+        for (CoverageResult child : node.getChildrenReal().values()) {
+            collect(child, nodes);
+        }
+    }
+
+    private static void intern(String s, Map<String, Integer> strings, List<String> table) {
+        if (s != null && !strings.containsKey(s)) {
+            strings.put(s, table.size());
+            table.add(s);
+        }
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.get();
+            result |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+        void writeInt(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+        }
+
+        void writeVarInt(int v) {
+            while ((v & ~0x7f) != 0) {
+                write((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            write(v);
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(UTF8);
+            writeVarInt(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,758 @@
+package hudson.plugins.erlangcover.targets;
+
+import gnu.trove.map.hash.TLongIntHashMap;
+import hudson.model.AbstractBuild;
+import hudson.plugins.erlangcover.Ratio;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Flat storage of the {@link CoverageResult} tree.
+ * <p/>
+ * Nodes are identified by their index, every property of the node is kept in a column indexed by it: parent and
+ * first child/next sibling links, element, name and source path ids in the shared name dictionary, numerator and
+ * denominator of every metric, and the paint. {@link CoverageResult} is a view of a single node, views are created
+ * on first access and reused afterwards.
+ * <p/>
+ * Every node is added after its parent, so children always have greater indexes. Aggregation is a single pass over
+ * the nodes in reverse order, which visits the children before their parent. Aggregated results are kept until the
+ * local data of the node or any node below changes.
+ * <p/>
+ * Once frozen, the store is immutable and read without locking. Subtrees of the nodes restored from a summary are
+ * loaded into stores of their own, which are frozen before they are published.
+ *
+ * @author idubrov
+ */
+final class CoverageStore implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final int NONE = -1;
+
+    private static final CoverageElement[] ELEMENTS = CoverageElement.values();
+    private static final CoverageMetric[] METRICS = CoverageMetric.values();
+
+    private int size;
+
+    private int[] parents = new int[16];
+    private byte[] elements = new byte[16];
+    private int[] names = new int[16];
+    /**
+     * Source path ids plus one, zero if node has no source path.
+     */
+    private int[] paths = new int[16];
+    private int[] firstChildren = new int[16];
+    private int[] nextSiblings = new int[16];
+    private CoveragePaint[] paints = new CoveragePaint[16];
+    /**
+     * Paint of the node with the paints of its children added, <code>null</code> if same as the node paint.
+     */
+    private CoveragePaint[] aggregatePaints = new CoveragePaint[16];
+
+    private final Metrics local = new Metrics(16);
+    private final Metrics aggregate = new Metrics(16);
+
+    /**
+     * Set for nodes which aggregated results were restored from a summary instead of being computed.
+     */
+    private boolean[] summarized = new boolean[16];
+
+    /**
+     * Set for nodes which aggregated results are up to date. If it is not set, it is not set for the parent either,
+     * unless the parent is summarized.
+     */
+    private boolean[] aggregated = new boolean[16];
+
+    /**
+     * Loaders of the nodes restored from a summary, allocated on first use.
+     */
+    private transient SubtreeLoader[] loaders;
+    private transient int[] summaryLines;
+    private transient AtomicReferenceArray<CoverageResult> subtrees;
+    /**
+     * Estimated size of the loaded subtrees, and the callback run once it grows.
+     */
+    private transient volatile long subtreesSize;
+    private transient volatile Runnable resizeListener;
+
+    /**
+     * Summarized node of another store this store is loaded for, see {@link #mount(CoverageResult)}.
+     */
+    private transient CoverageResult mount;
+
+    private transient CoverageResult[] views = new CoverageResult[16];
+    /**
+     * Views of the frozen store, set on first access without locking.
+     */
+    private transient AtomicReferenceArray<CoverageResult> frozenViews;
+
+    private volatile boolean frozen;
+
+    private final List<String> nameTable = new ArrayList<String>();
+    private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+
+    /**
+     * Child index by parent index and child name id.
+     */
+    private final TLongIntHashMap children = new TLongIntHashMap(16, 0.5f, 0, NONE);
+
+    /**
+     * Child index by parent index and URL token id of the child name, see {@link #childByToken(int, String)}.
+     * Built for the parent on first lookup.
+     */
+    private transient TLongIntHashMap tokenChildren;
+    private transient Map<String, Integer> tokenIds;
+    private transient BitSet tokenIndexed;
+
+    private transient volatile AbstractBuild<?, ?> owner;
+
+    /**
+     * Numerator and denominator columns of every metric.
+     */
+    private static final class Metrics implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private static final CoverageAggregationRule[][][] RULES =
+                new CoverageAggregationRule[ELEMENTS.length][METRICS.length][];
+
+        static {
+            for (CoverageElement element : ELEMENTS) {
+                for (CoverageMetric metric : METRICS) {
+                    RULES[element.ordinal()][metric.ordinal()] = CoverageAggregationRule.getRules(element, metric);
+                }
+            }
+        }
+
+        /**
+         * Bit set of the metrics present for the node.
+         */
+        byte[] masks;
+        final int[][] numerators = new int[METRICS.length][];
+        final int[][] denominators = new int[METRICS.length][];
+
+        Metrics(int capacity) {
+            masks = new byte[capacity];
+            for (int m = 0; m < METRICS.length; m++) {
+                numerators[m] = new int[capacity];
+                denominators[m] = new int[capacity];
+            }
+        }
+
+        void grow(int capacity) {
+            masks = copyOf(masks, capacity);
+            for (int m = 0; m < METRICS.length; m++) {
+                numerators[m] = copyOf(numerators[m], capacity);
+                denominators[m] = copyOf(denominators[m], capacity);
+            }
+        }
+
+        boolean has(int node, CoverageMetric metric) {
+            return (masks[node] & (1 << metric.ordinal())) != 0;
+        }
+
+        Ratio get(int node, CoverageMetric metric) {
+            if (!has(node, metric)) {
+                return null;
+            }
+            return Ratio.create(numerators[metric.ordinal()][node], denominators[metric.ordinal()][node]);
+        }
+
+        void set(int node, CoverageMetric metric, Ratio ratio) {
+            if (ratio == null) {
+                masks[node] &= ~(1 << metric.ordinal());
+            } else {
+                masks[node] |= 1 << metric.ordinal();
+                numerators[metric.ordinal()][node] = ratio.numerator;
+                denominators[metric.ordinal()][node] = ratio.denominator;
+            }
+        }
+
+        Map<CoverageMetric, Ratio> getAll(int node) {
+            Map<CoverageMetric, Ratio> result = new EnumMap<CoverageMetric, Ratio>(CoverageMetric.class);
+            for (CoverageMetric metric : METRICS) {
+                if (has(node, metric)) {
+                    result.put(metric, get(node, metric));
+                }
+            }
+            return result;
+        }
+
+        void set(int node, int metric, int numerator, int denominator) {
+            masks[node] |= 1 << metric;
+            numerators[metric][node] = numerator;
+            denominators[metric][node] = denominator;
+        }
+
+        void clear(int node) {
+            masks[node] = 0;
+            for (int m = 0; m < METRICS.length; m++) {
+                numerators[m][node] = 0;
+                denominators[m][node] = 0;
+            }
+        }
+
+        /**
+         * Aggregates every metric of the child into the node.
+         */
+        void aggregate(int node, Metrics child, int childNode, CoverageElement childElement) {
+            int mask = child.masks[childNode] & 0xff;
+            for (int m = 0; mask != 0; m++, mask >>>= 1) {
+                if ((mask & 1) == 0) {
+                    continue;
+                }
+                for (CoverageAggregationRule rule : RULES[childElement.ordinal()][m]) {
+                    int output = rule.getOutput().ordinal();
+                    if (rule.getMode().aggregate(numerators[output], denominators[output], node,
+                            child.numerators[m][childNode], child.denominators[m][childNode])) {
+                        masks[node] |= 1 << output;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Overrides metrics of the node with the ones present in the other columns.
+         */
+        void override(int node, Metrics other, int otherNode) {
+            int mask = other.masks[otherNode] & 0xff;
+            for (int m = 0; mask != 0; m++, mask >>>= 1) {
+                if ((mask & 1) != 0) {
+                    set(node, m, other.numerators[m][otherNode], other.denominators[m][otherNode]);
+                }
+            }
+        }
+
+        void setAll(int node, Map<CoverageMetric, Ratio> results) {
+            masks[node] = 0;
+            for (Map.Entry<CoverageMetric, Ratio> result : results.entrySet()) {
+                set(node, result.getKey(), result.getValue());
+            }
+        }
+    }
+
+    /**
+     * Adds a node.
+     *
+     * @param parent parent node or {@link #NONE} for the root
+     * @return index of the new node
+     */
+    int add(int parent, CoverageElement element, String name) {
+        checkMutable();
+        int id = nameId(name);
+        if (parent != NONE && child(parent, id) != NONE) {
+            throw new IllegalArgumentException("Duplicate child " + name);
+        }
+        if (size == parents.length) {
+            grow(size * 2);
+        }
+        int node = size++;
+        parents[node] = parent;
+        elements[node] = (byte) element.ordinal();
+        names[node] = id;
+        firstChildren[node] = NONE;
+        nextSiblings[node] = NONE;
+        paints[node] = CoveragePaintRule.makePaint(element);
+        if (parent != NONE) {
+            nextSiblings[node] = firstChildren[parent];
+            firstChildren[parent] = node;
+            children.put(key(parent, id), node);
+            invalidate(parent);
+            unindexTokens(parent);
+        }
+        return node;
+    }
+
+    private void grow(int capacity) {
+        parents = copyOf(parents, capacity);
+        elements = copyOf(elements, capacity);
+        names = copyOf(names, capacity);
+        paths = copyOf(paths, capacity);
+        firstChildren = copyOf(firstChildren, capacity);
+        nextSiblings = copyOf(nextSiblings, capacity);
+        CoveragePaint[] newPaints = new CoveragePaint[capacity];
+        System.arraycopy(paints, 0, newPaints, 0, size);
+        paints = newPaints;
+        CoveragePaint[] newAggregatePaints = new CoveragePaint[capacity];
+        System.arraycopy(aggregatePaints, 0, newAggregatePaints, 0, size);
+        aggregatePaints = newAggregatePaints;
+        local.grow(capacity);
+        aggregate.grow(capacity);
+        boolean[] newSummarized = new boolean[capacity];
+        System.arraycopy(summarized, 0, newSummarized, 0, size);
+        summarized = newSummarized;
+        boolean[] newAggregated = new boolean[capacity];
+        System.arraycopy(aggregated, 0, newAggregated, 0, size);
+        aggregated = newAggregated;
+    }
+
+    private int nameId(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = nameTable.size();
+            nameTable.add(name);
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    private static long key(int parent, int name) {
+        return ((long) parent << 32) | (name & 0xffffffffL);
+    }
+
+    /**
+     * Gets the view of the node, the same view is returned for the node every time.
+     */
+    CoverageResult view(int node) {
+        if (frozen) {
+            CoverageResult view = frozenViews.get(node);
+            if (view == null) {
+                frozenViews.compareAndSet(node, null, new CoverageResult(this, node));
+                view = frozenViews.get(node);
+            }
+            return view;
+        }
+        return mutableView(node);
+    }
+
+    private synchronized CoverageResult mutableView(int node) {
+        ensureViews(node);
+        CoverageResult view = views[node];
+        if (view == null) {
+            view = new CoverageResult(this, node);
+            views[node] = view;
+        }
+        return view;
+    }
+
+    /**
+     * Registers the view created for the new node.
+     */
+    synchronized void register(int node, CoverageResult view) {
+        ensureViews(node);
+        views[node] = view;
+    }
+
+    private void ensureViews(int node) {
+        if (views == null) {
+            views = new CoverageResult[parents.length];
+        } else if (views.length <= node) {
+            CoverageResult[] newViews = new CoverageResult[parents.length];
+            System.arraycopy(views, 0, newViews, 0, views.length);
+            views = newViews;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getParent(int node) {
+        return parents[node];
+    }
+
+    CoverageElement getElement(int node) {
+        return ELEMENTS[elements[node]];
+    }
+
+    String getName(int node) {
+        return nameTable.get(names[node]);
+    }
+
+    String getPath(int node) {
+        int path = paths[node];
+        return path == 0 ? null : nameTable.get(path - 1);
+    }
+
+    void setPath(int node, String path) {
+        checkMutable();
+        paths[node] = path == null ? 0 : nameId(path) + 1;
+    }
+
+    /**
+     * Gets the paint of the node itself.
+     */
+    CoveragePaint getPaint(int node) {
+        return paints[node];
+    }
+
+    /**
+     * Gets the aggregated paint of the node.
+     */
+    CoveragePaint getAggregatePaint(int node) {
+        CoveragePaint paint = aggregatePaints[node];
+        return paint != null ? paint : paints[node];
+    }
+
+    void paint(int node, int line, int hits) {
+        checkMutable();
+        CoveragePaint paint = paints[node];
+        if (paint != null) {
+            paint.paint(line, hits);
+            invalidate(node);
+        }
+    }
+
+    void addPaint(int node, CoveragePaint other) {
+        checkMutable();
+        CoveragePaint paint = paints[node];
+        if (paint != null && other != null) {
+            paint.add(other);
+            invalidate(node);
+        }
+    }
+
+    int getFirstChild(int node) {
+        return firstChildren[node];
+    }
+
+    int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    /**
+     * Finds the child by name.
+     *
+     * @return index of the child or {@link #NONE}
+     */
+    int child(int parent, String name) {
+        Integer id = nameIds.get(name);
+        return id == null ? NONE : child(parent, id);
+    }
+
+    private int child(int parent, int name) {
+        return children.get(key(parent, name));
+    }
+
+    /**
+     * Finds the child by the URL token of its name. Names are transformed to tokens by replacing every character
+     * except letters and digits with underscore and lowercasing; if several children have the same token, the
+     * child with the least name is found.
+     *
+     * @return index of the child or {@link #NONE}
+     */
+    int childByToken(int parent, String token) {
+        if (frozen) {
+            // every node is indexed by freeze()
+            return tokenChild(parent, token);
+        }
+        synchronized (this) {
+            indexTokens(parent);
+            return tokenChild(parent, token);
+        }
+    }
+
+    private int tokenChild(int parent, String token) {
+        // the same ASCII-only lowercasing as the index, whatever the default locale is
+        Integer id = tokenIds.get(urlToken(token));
+        return id == null ? NONE : tokenChildren.get(key(parent, id));
+    }
+
+    private void indexTokens(int parent) {
+        if (tokenIndexed == null) {
+            tokenChildren = new TLongIntHashMap(16, 0.5f, 0, NONE);
+            tokenIds = new HashMap<String, Integer>();
+            tokenIndexed = new BitSet();
+        }
+        if (tokenIndexed.get(parent)) {
+            return;
+        }
+        for (int child = firstChildren[parent]; child != NONE; child = nextSiblings[child]) {
+            String childToken = urlToken(getName(child));
+            Integer id = tokenIds.get(childToken);
+            if (id == null) {
+                id = tokenIds.size();
+                tokenIds.put(childToken, id);
+            }
+            long key = key(parent, id);
+            int existing = tokenChildren.get(key);
+            if (existing == NONE || getName(child).compareTo(getName(existing)) < 0) {
+                tokenChildren.put(key, child);
+            }
+        }
+        tokenIndexed.set(parent);
+    }
+
+    private synchronized void unindexTokens(int parent) {
+        if (tokenIndexed != null) {
+            tokenIndexed.clear(parent);
+        }
+    }
+
+    private static String urlToken(String name) {
+        StringBuilder buf = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (('0' <= c && '9' >= c) || ('a' <= c && 'z' >= c)) {
+                buf.append(c);
+            } else if ('A' <= c && 'Z' >= c) {
+                buf.append((char) (c - 'A' + 'a'));
+            } else {
+                buf.append('_');
+            }
+        }
+        return buf.toString();
+    }
+
+    Ratio getLocal(int node, CoverageMetric metric) {
+        return local.get(node, metric);
+    }
+
+    Map<CoverageMetric, Ratio> getLocalResults(int node) {
+        return local.getAll(node);
+    }
+
+    void setLocal(int node, CoverageMetric metric, Ratio ratio) {
+        checkMutable();
+        local.set(node, metric, ratio);
+        invalidate(node);
+    }
+
+    Ratio getAggregate(int node, CoverageMetric metric) {
+        return aggregate.get(node, metric);
+    }
+
+    Map<CoverageMetric, Ratio> getAggregateResults(int node) {
+        return aggregate.getAll(node);
+    }
+
+    boolean hasAggregate(int node, CoverageMetric metric) {
+        return aggregate.has(node, metric);
+    }
+
+    AbstractBuild<?, ?> getOwner() {
+        return mount != null ? mount.getOwner() : owner;
+    }
+
+    /**
+     * Gets the summarized node this store is loaded for, or <code>null</code>.
+     */
+    CoverageResult getMount() {
+        return mount;
+    }
+
+    void setOwner(AbstractBuild<?, ?> owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Restores aggregated results of the node without its subtree.
+     */
+    void restoreSummary(int node, Map<CoverageMetric, Ratio> results, Integer line, SubtreeLoader loader) {
+        checkMutable();
+        aggregate.setAll(node, results);
+        aggregatePaints[node] = null;
+        summarized[node] = true;
+        aggregated[node] = true;
+        if (loader != null) {
+            if (loaders == null || loaders.length <= node) {
+                SubtreeLoader[] newLoaders = new SubtreeLoader[parents.length];
+                int[] newLines = new int[parents.length];
+                if (loaders != null) {
+                    System.arraycopy(loaders, 0, newLoaders, 0, loaders.length);
+                    System.arraycopy(summaryLines, 0, newLines, 0, summaryLines.length);
+                }
+                loaders = newLoaders;
+                summaryLines = newLines;
+            }
+            if (subtrees == null || subtrees.length() <= node) {
+                AtomicReferenceArray<CoverageResult> newSubtrees =
+                        new AtomicReferenceArray<CoverageResult>(parents.length);
+                for (int i = 0; subtrees != null && i < subtrees.length(); i++) {
+                    newSubtrees.set(i, subtrees.get(i));
+                }
+                subtrees = newSubtrees;
+            }
+            loaders[node] = loader;
+            // zero is reserved for no line
+            summaryLines[node] = line == null ? 0 : line + 1;
+        }
+    }
+
+    SubtreeLoader getLoader(int node) {
+        SubtreeLoader[] l = loaders;
+        return (l != null && node < l.length) ? l[node] : null;
+    }
+
+    Integer getSummaryLine(int node) {
+        int line = summaryLines[node];
+        return line == 0 ? null : line - 1;
+    }
+
+    /**
+     * Gets the subtree of the node restored from a summary, loading it on first access. Concurrent first accesses
+     * wait for the single load.
+     */
+    CoverageResult getSubtree(int node) throws IOException {
+        CoverageResult subtree = subtrees.get(node);
+        if (subtree != null) {
+            return subtree;
+        }
+        SubtreeLoader loader = loaders[node];
+        synchronized (loader) {
+            subtree = subtrees.get(node);
+            if (subtree == null) {
+                subtree = loader.load(view(node));
+                subtrees.set(node, subtree);
+                subtreeLoaded(subtree.getEstimatedSize());
+            }
+            return subtree;
+        }
+    }
+
+    private void subtreeLoaded(long size) {
+        synchronized (this) {
+            subtreesSize += size;
+        }
+        Runnable listener = resizeListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    void setResizeListener(Runnable listener) {
+        resizeListener = listener;
+    }
+
+    /**
+     * Mounts this store on the summarized node of another store and freezes it. The summarized node replaces the
+     * root of this store, so it becomes the parent of the root children.
+     */
+    void mount(CoverageResult summary) {
+        checkMutable();
+        register(0, summary);
+        mount = summary;
+        freeze();
+    }
+
+    /**
+     * Estimates the heap retained by the store, including the subtrees loaded for the summarized nodes so far.
+     */
+    long estimateSize() {
+        int capacity = parents.length;
+        // link, element, name and path columns, flags, metric columns, paint and view references
+        long size = capacity * (5L * 4 + 1 + 3 + 2 * (1 + METRICS.length * 8) + 3 * 8);
+        for (int node = 0; node < this.size; node++) {
+            size += estimateSize(paints[node]) + estimateSize(aggregatePaints[node]);
+        }
+        for (String name : nameTable) {
+            size += 40 + 2 * name.length();
+        }
+        // name and child indexes
+        size += nameTable.size() * 48L + children.capacity() * 12L;
+        return size + subtreesSize;
+    }
+
+    private static long estimateSize(CoveragePaint paint) {
+        return paint == null ? 0 : 48 + paint.getLineCount() * 8L;
+    }
+
+    boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Aggregates the results and freezes the store. Every node is indexed by URL token, so frozen store is never
+     * changed again.
+     */
+    synchronized void freeze() {
+        if (frozen) {
+            return;
+        }
+        aggregate();
+        frozenViews = new AtomicReferenceArray<CoverageResult>(size);
+        for (int node = 0; node < size; node++) {
+            if (views != null && node < views.length) {
+                frozenViews.set(node, views[node]);
+            }
+            if (firstChildren[node] != NONE) {
+                indexTokens(node);
+            }
+        }
+        if (tokenIndexed == null) {
+            indexTokens(0);
+        }
+        views = null;
+        frozen = true;
+    }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new IllegalStateException("Coverage result is frozen");
+        }
+    }
+
+    /**
+     * Marks aggregated results of the node and its ancestors out of date. Summarized nodes keep the restored results.
+     */
+    private void invalidate(int node) {
+        for (int n = node; n != NONE && aggregated[n] && !summarized[n]; n = parents[n]) {
+            aggregated[n] = false;
+        }
+    }
+
+    /**
+     * Aggregates the results of the nodes which are out of date.
+     */
+    void aggregate() {
+        if (frozen) {
+            return;
+        }
+        synchronized (this) {
+            aggregateChanged();
+        }
+    }
+
+    private void aggregateChanged() {
+        List<CoveragePaint> childPaints = new ArrayList<CoveragePaint>();
+        for (int node = size - 1; node >= 0; node--) {
+            if (aggregated[node]) {
+                continue;
+            }
+
+            aggregate.clear(node);
+            CoveragePaint paint = paints[node];
+            childPaints.clear();
+            for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+                CoverageElement element = getElement(child);
+                aggregate.aggregate(node, aggregate, child, element);
+                CoveragePaint childPaint = getAggregatePaint(child);
+                if (paint != null && childPaint != null && CoveragePaintRule.propagatePaintToParent(element)) {
+                    childPaints.add(childPaint);
+                }
+            }
+            if (!childPaints.isEmpty()) {
+                childPaints.add(paint);
+                paint = CoveragePaint.sum(childPaints);
+                aggregatePaints[node] = paint;
+            } else {
+                aggregatePaints[node] = null;
+            }
+            // override any local results (as they should be more accurate than the aggregated ones)
+            aggregate.override(node, local, node);
+            // now inject any results from CoveragePaint as they should be most accurate.
+            if (paint != null) {
+                aggregate.set(node, CoverageMetric.LINE.ordinal(), paint.getCoveredLineCount(), paint.getLineCount());
+            }
+            aggregated[node] = true;
+        }
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+
+    private static byte[] copyOf(byte[] array, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+        return result;
+    }
+}
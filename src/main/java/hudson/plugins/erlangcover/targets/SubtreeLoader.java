@@ -0,0 +1,17 @@
+package hudson.plugins.erlangcover.targets;
+
+import java.io.IOException;
+
+/**
+ * Loads the subtree of a {@link CoverageResult} restored from a summary.
+ *
+ * @author idubrov
+ */
+interface SubtreeLoader {
+    /**
+     * Loads the subtree of the given node.
+     *
+     * @return frozen tree mounted on the node, see {@link CoverageResult#mount(CoverageResult)}
+     */
+    CoverageResult load(CoverageResult node) throws IOException;
+}
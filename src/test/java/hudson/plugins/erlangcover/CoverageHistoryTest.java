@@ -0,0 +1,133 @@
+package hudson.plugins.erlangcover;
+
+import hudson.model.Result;
+import hudson.plugins.erlangcover.targets.CoverageMetric;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author idubrov
+ */
+public class CoverageHistoryTest extends TestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("history", ".dat");
+        assertTrue(file.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private static Map<CoverageMetric, Ratio> results(int covered, int total) {
+        Map<CoverageMetric, Ratio> results = new EnumMap<CoverageMetric, Ratio>(CoverageMetric.class);
+        results.put(CoverageMetric.LINE, Ratio.create(covered, total));
+        return results;
+    }
+
+    private static Map<String, Map<CoverageMetric, Ratio>> modules(Object... nameAndCovered) {
+        Map<String, Map<CoverageMetric, Ratio>> modules = new LinkedHashMap<String, Map<CoverageMetric, Ratio>>();
+        for (int i = 0; i < nameAndCovered.length; i += 2) {
+            modules.put((String) nameAndCovered[i], results((Integer) nameAndCovered[i + 1], 10));
+        }
+        return modules;
+    }
+
+    private static List<CoverageTrend.Entry> builds(int... numbers) {
+        List<CoverageTrend.Entry> builds = new ArrayList<CoverageTrend.Entry>();
+        for (int number : numbers) {
+            builds.add(new CoverageTrend.Entry(number, number * 1000L, Result.SUCCESS, false, results(0, 1)));
+        }
+        return builds;
+    }
+
+    /**
+     * Gets the build numbers and covered lines of the module, as "number:covered".
+     */
+    private static List<String> trend(CoverageHistory history, String module, int... numbers) {
+        List<String> trend = new ArrayList<String>();
+        for (CoverageTrend.Entry entry : history.getEntries(builds(numbers), module)) {
+            assertEquals(entry.getNumber() * 1000L, entry.getTimestamp());
+            trend.add(entry.getNumber() + ":" + entry.getCoverage(CoverageMetric.LINE).numerator);
+        }
+        return trend;
+    }
+
+    public void testAppend() throws Exception {
+        CoverageHistory history = new CoverageHistory(file);
+        history.append(1, modules("sip_app", 1, "sip_ua", 2));
+        history.append(2, modules("sip_ua", 3, "sip_app", 4));
+        // new module sorts before the existing ones by name, but gets the next id
+        history.append(3, modules("a_sup", 5, "sip_app", 6, "sip_ua", 7));
+
+        assertEquals(Arrays.asList("1:1", "2:4", "3:6"), trend(history, "sip_app", 1, 2, 3));
+        assertEquals(Arrays.asList("1:2", "2:3", "3:7"), trend(history, "sip_ua", 1, 2, 3));
+        assertEquals(Arrays.asList("3:5"), trend(history, "a_sup", 1, 2, 3));
+        assertEquals(Arrays.asList("1:2", "3:7"), trend(history, "sip_ua", 1, 3));
+        assertTrue(trend(history, "no_such_module", 1, 2, 3).isEmpty());
+
+        // later record replaces the earlier one
+        history.append(2, modules("sip_app", 8));
+        assertEquals(Arrays.asList("1:1", "2:8", "3:6"), trend(history, "sip_app", 1, 2, 3));
+        assertEquals(Arrays.asList("1:2", "3:7"), trend(history, "sip_ua", 1, 2, 3));
+
+        // file is indexed again from scratch
+        history = new CoverageHistory(file);
+        assertEquals(Arrays.asList("1:1", "2:8", "3:6"), trend(history, "sip_app", 1, 2, 3));
+        assertEquals(Arrays.asList("3:5"), trend(history, "a_sup", 1, 2, 3));
+    }
+
+    public void testPartialRecord() throws Exception {
+        CoverageHistory history = new CoverageHistory(file);
+        history.append(1, modules("sip_app", 1));
+        history.append(2, modules("sip_app", 2, "sip_ua", 3));
+
+        // record left partially written by a crash
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        history = new CoverageHistory(file);
+        assertEquals(Arrays.asList("1:1"), trend(history, "sip_app", 1, 2));
+        history.append(3, modules("sip_ua", 4, "sip_app", 5));
+        assertEquals(Arrays.asList("1:1", "3:5"), trend(history, "sip_app", 1, 2, 3));
+        assertEquals(Arrays.asList("3:4"), trend(new CoverageHistory(file), "sip_ua", 1, 2, 3));
+    }
+
+    public void testCompact() throws Exception {
+        CoverageHistory history = new CoverageHistory(file);
+        for (int number = 1; number <= 4; number++) {
+            history.append(number, modules("sip_app", number, "sip_ua", number + 1));
+        }
+        long length = file.length();
+
+        // most of the builds are live, nothing to compact
+        history.compact(new HashSet<Integer>(Arrays.asList(1, 2, 3)));
+        assertEquals(length, file.length());
+
+        history.compact(new HashSet<Integer>(Arrays.asList(2, 4)));
+        assertTrue(file.length() < length);
+        assertEquals(Arrays.asList("2:2", "4:4"), trend(history, "sip_app", 1, 2, 3, 4));
+        history.append(5, modules("sip_sup", 9, "sip_ua", 6));
+        assertEquals(Arrays.asList("2:3", "4:5", "5:6"), trend(history, "sip_ua", 1, 2, 3, 4, 5));
+
+        history = new CoverageHistory(file);
+        assertEquals(Arrays.asList("2:3", "4:5", "5:6"), trend(history, "sip_ua", 1, 2, 3, 4, 5));
+        assertEquals(Arrays.asList("5:9"), trend(history, "sip_sup", 1, 2, 3, 4, 5));
+    }
+}
@@ -3,19 +3,29 @@ package hudson.plugins.erlangcover;
 import hudson.model.AbstractBuild;
 import hudson.plugins.erlangcover.targets.CoverageElement;
 import hudson.plugins.erlangcover.targets.CoverageMetric;
+import hudson.plugins.erlangcover.targets.CoveragePaint;
 import hudson.plugins.erlangcover.targets.CoverageResult;
+import hudson.plugins.erlangcover.targets.CoverageResultCodec;
 import junit.framework.TestCase;
 import org.easymock.EasyMock;
 import org.easymock.IMocksControl;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Unit tests for {@link CoverageResult}.
  */
 public class CoverageResultTest extends TestCase {
     private static final String FILE_COVERAGE_DATA = "coverage-with-data.coverdata";
+    private static final String FILE_COVERAGE = "coverage.coverdata";
     private IMocksControl ctl;
     private AbstractBuild<?, ?> build;
 
@@ -215,4 +225,276 @@ public class CoverageResultTest extends TestCase {
         assertEquals(Collections.EMPTY_SET, result.getChildMetrics(CoverageElement.ERLANG_FUNCTION));
         ctl.verify();
     }
+
+    /**
+     * Tests that {@link CoverageResult#merge(CoverageResult)} gives the same tree as cumulative parsing.
+     */
+    public void testMerge() throws Exception {
+        ctl.replay();
+        CoverageResult expected = CoverCoverageParser.parse(getClass().getResourceAsStream(FILE_COVERAGE_DATA), null);
+        CoverCoverageParser.parse(getClass().getResourceAsStream(FILE_COVERAGE), expected);
+        expected.setOwner(build);
+
+        CoverageResult result = loadResults(FILE_COVERAGE_DATA);
+        result.merge(loadResults(FILE_COVERAGE));
+        result.setOwner(build);
+        assertSameTree(expected, result);
+        ctl.verify();
+    }
+
+    /**
+     * Tests the behavior of {@link CoverageResult#getDynamic(String, org.kohsuke.stapler.StaplerRequest,
+     * org.kohsuke.stapler.StaplerResponse)}.
+     */
+    public void testGetDynamic() throws Exception {
+        ctl.replay();
+        CoverageResult result = loadResults(FILE_COVERAGE_DATA);
+        result.setOwner(build);
+        CoverageResult module = result.getChild("sip_ua_client");
+        assertSame(module, result.getDynamic("sip_ua_client", null, null));
+        assertSame(module, result.getDynamic("SIP_UA_Client", null, null));
+        for (String name : module.getChildren()) {
+            assertSame(module.getChild(name), module.getDynamic(module.urlTransform(name), null, null));
+        }
+        assertNull(result.getDynamic("no_such_module", null, null));
+
+        // tokens are matched the same in the locale where I does not lowercase to i
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            assertSame(module, result.getDynamic("SIP_UA_CLIENT", null, null));
+        } finally {
+            Locale.setDefault(locale);
+        }
+
+        // names with the same token resolve to the least name
+        CoverageResult dotted = result.createChild(CoverageElement.ERLANG_MODULE, "sip.ua.client");
+        assertSame(dotted, result.getDynamic("sip_ua_client", null, null));
+        ctl.verify();
+    }
+
+    /**
+     * Tests that aggregating the tree again does not count anything twice, and changes made after the aggregation
+     * are picked up by the next one.
+     */
+    public void testAggregateTwice() throws Exception {
+        ctl.replay();
+        CoverageResult expected = loadResults(FILE_COVERAGE_DATA);
+        expected.setOwner(build);
+
+        CoverageResult result = loadResults(FILE_COVERAGE_DATA);
+        result.setOwner(build);
+        result.setOwner(build);
+        assertSameTree(expected, result);
+        assertEquals(Ratio.create(500, 731), result.getCoverage(CoverageMetric.LINE));
+
+        CoverageResult function = result.createChild(CoverageElement.ERLANG_MODULE, "extra")
+                .createChild(CoverageElement.ERLANG_FUNCTION, "f/0");
+        function.paint(1, 1);
+        function.updateMetric(CoverageMetric.LINE, Ratio.create(1, 1));
+        result.setOwner(build);
+        assertEquals(Ratio.create(501, 732), result.getCoverage(CoverageMetric.LINE));
+        assertEquals(Ratio.create(43, 43), result.getCoverage(CoverageMetric.MODULES));
+        assertEquals(Ratio.create(1, 1), result.getChild("extra").getCoverage(CoverageMetric.FUNCTION));
+        ctl.verify();
+    }
+
+    /**
+     * Tests that painted sources carry the paint of the whole module.
+     */
+    public void testGetPaintedSources() throws Exception {
+        ctl.replay();
+        CoverageResult result = loadResults(FILE_COVERAGE_DATA);
+        result.setOwner(build);
+        CoverageResult module = result.getChild("sip_ua_client");
+        CoveragePaint paint = result.getPaintedSources().get(module.getRelativeSourcePath());
+        assertEquals(module.getCoverage(CoverageMetric.LINE), paint.getLineCoverage());
+        ctl.verify();
+    }
+
+    /**
+     * Tests that parallel parsing of several files gives the same tree as sequential parsing.
+     */
+    public void testParseParallel() throws Exception {
+        ctl.replay();
+        File[] files = {
+                new File(getClass().getResource(FILE_COVERAGE_DATA).toURI()),
+                new File(getClass().getResource(FILE_COVERAGE).toURI()),
+                new File(getClass().getResource(FILE_COVERAGE_DATA).toURI())
+        };
+        CoverageResult expected = null;
+        Set<String> expectedPaths = new HashSet<String>();
+        for (File file : files) {
+            expected = CoverCoverageParser.parse(file, expected, expectedPaths);
+        }
+        expected.setOwner(build);
+
+        Set<String> paths = new HashSet<String>();
+        Map<File, IOException> failures = new HashMap<File, IOException>();
+        CoverageResult result = CoverCoverageParser.parse(files, paths, failures);
+        result.setOwner(build);
+        assertTrue(failures.isEmpty());
+        assertEquals(expectedPaths, paths);
+        assertSameTree(expected, result);
+        ctl.verify();
+    }
+
+    /**
+     * Tests that indexed parsing of a single file gives the same tree as sequential parsing.
+     */
+    public void testParseIndexed() throws Exception {
+        ctl.replay();
+        File file = new File(getClass().getResource(FILE_COVERAGE_DATA).toURI());
+        Set<String> expectedPaths = new HashSet<String>();
+        CoverageResult expected = CoverCoverageParser.parse(file, null, expectedPaths);
+        expected.setOwner(build);
+
+        Set<String> paths = new HashSet<String>();
+        CoverageResult result = CoverCoverageParser.parseIndexed(file, null, paths);
+        result.setOwner(build);
+        assertEquals(expectedPaths, paths);
+        assertSameTree(expected, result);
+        ctl.verify();
+    }
+
+    /**
+     * Test that the compact encoding keeps the whole tree.
+     */
+    public void testEncode() throws Exception {
+        ctl.replay();
+        File file = new File(getClass().getResource(FILE_COVERAGE_DATA).toURI());
+        CoverageResult expected = CoverCoverageParser.parse(file, null);
+        byte[] encoded = CoverageResultCodec.encode(expected);
+        expected.setOwner(build);
+
+        CoverageResult result = CoverageResultCodec.decode(ByteBuffer.wrap(encoded));
+        result.setOwner(build);
+        assertSameTree(expected, result);
+        ctl.verify();
+    }
+
+    /**
+     * Test that the snapshot file is loaded back.
+     */
+    public void testSnapshot() throws Exception {
+        ctl.replay();
+        File file = new File(getClass().getResource(FILE_COVERAGE_DATA).toURI());
+        CoverageResult expected = CoverCoverageParser.parse(file, null);
+        File snapshot = File.createTempFile("coverage", ".snap");
+        try {
+            CoverageResultCodec.save(CoverageResultCodec.encode(expected), snapshot);
+            expected.setOwner(build);
+
+            CoverageResult result = CoverageResultCodec.load(snapshot);
+            result.setOwner(build);
+            assertSameTree(expected, result);
+        } finally {
+            snapshot.delete();
+        }
+        ctl.verify();
+    }
+
+    /**
+     * Tests that the subtrees loaded from the snapshot count in the estimated size of the tree.
+     */
+    public void testEstimatedSize() throws Exception {
+        ctl.replay();
+        File file = new File(getClass().getResource(FILE_COVERAGE_DATA).toURI());
+        File snapshot = File.createTempFile("coverage", ".snap");
+        try {
+            CoverageResultCodec.save(CoverageResultCodec.encode(CoverCoverageParser.parse(file, null)), snapshot);
+            CoverageResult result = CoverageResultCodec.load(snapshot);
+            result.setOwner(build);
+            result.freeze();
+            final int[] resized = new int[1];
+            result.setResizeListener(new Runnable() {
+                public void run() {
+                    resized[0]++;
+                }
+            });
+
+            long size = result.getEstimatedSize();
+            CoverageResult module = result.getChild("sip_app");
+            assertNotNull(module.getChild("stop/1"));
+            assertEquals(1, resized[0]);
+            long loadedSize = result.getEstimatedSize();
+            assertTrue(loadedSize > size);
+
+            // loaded once
+            module.getChildren();
+            assertEquals(1, resized[0]);
+            assertEquals(loadedSize, result.getEstimatedSize());
+        } finally {
+            snapshot.delete();
+        }
+        ctl.verify();
+    }
+
+    /**
+     * Tests the behavior of {@link CoverageResult#freeze()} on the tree loaded from the snapshot.
+     */
+    public void testFreeze() throws Exception {
+        ctl.replay();
+        File file = new File(getClass().getResource(FILE_COVERAGE_DATA).toURI());
+        File snapshot = File.createTempFile("coverage", ".snap");
+        try {
+            CoverageResultCodec.save(CoverageResultCodec.encode(CoverCoverageParser.parse(file, null)), snapshot);
+            final CoverageResult result = CoverageResultCodec.load(snapshot);
+            result.setOwner(build);
+            result.freeze();
+            assertTrue(result.isFrozen());
+
+            // concurrent first accesses load the module once
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<CoverageResult>> futures = new ArrayList<Future<CoverageResult>>();
+                for (int i = 0; i < 8; i++) {
+                    futures.add(executor.submit(new Callable<CoverageResult>() {
+                        public CoverageResult call() {
+                            return result.getChild("sip_app").getChild("stop/1");
+                        }
+                    }));
+                }
+                CoverageResult function = futures.get(0).get();
+                for (Future<CoverageResult> future : futures) {
+                    assertSame(function, future.get());
+                }
+                assertSame(result.getChild("sip_app"), function.getParent());
+                assertSame(result, function.getParent().getParent());
+                assertSame(build, function.getOwner());
+            } finally {
+                executor.shutdown();
+            }
+
+            try {
+                result.getChild("sip_app").createChild(CoverageElement.ERLANG_FUNCTION, "extra/0");
+                fail("Frozen tree is changed");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            try {
+                result.getChild("sip_app").getChild("stop/1").paint(1, 1);
+                fail("Frozen tree is changed");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            snapshot.delete();
+        }
+        ctl.verify();
+    }
+
+    private static void assertSameTree(CoverageResult expected, CoverageResult actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getElement(), actual.getElement());
+        assertEquals(expected.getRelativeSourcePath(), actual.getRelativeSourcePath());
+        assertEquals(expected.getResults(), actual.getResults());
+        if (expected.getPaint() != null) {
+            assertEquals(expected.getPaint().getLineCoverage(), actual.getPaint().getLineCoverage());
+        }
+        assertEquals(expected.getChildren(), actual.getChildren());
+        for (String child : expected.getChildren()) {
+            assertSameTree(expected.getChild(child), actual.getChild(child));
+        }
+    }
 }
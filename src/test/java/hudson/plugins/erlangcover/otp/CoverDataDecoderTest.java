@@ -0,0 +1,301 @@
+package hudson.plugins.erlangcover.otp;
+
+import com.google.common.io.ByteStreams;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Unit tests for {@link CoverDataDecoder}.
+ */
+public class CoverDataDecoderTest extends TestCase {
+
+    private static class CountingHandler implements CoverDataHandler {
+        final Set<String> modules = new HashSet<String>();
+        int files;
+        int bumps;
+        int hits;
+
+        public void onFile(String module, String beamPath) {
+            files++;
+            modules.add(module);
+            assertTrue(beamPath, beamPath.endsWith(module + ".beam"));
+        }
+
+        public void onBump(String module, String function, int arity, int clause, int line, int hits) {
+            bumps++;
+            this.hits += hits;
+            assertTrue(module, modules.contains(module));
+        }
+    }
+
+    /**
+     * Returns at most one byte per read.
+     */
+    private static class SlowInputStream extends ByteArrayInputStream {
+        SlowInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private CountingHandler decode(String fileName) throws IOException {
+        CountingHandler handler = new CountingHandler();
+        InputStream in = getClass().getResourceAsStream("/hudson/plugins/erlangcover/" + fileName);
+        try {
+            new CoverDataDecoder(handler).decode(in);
+        } finally {
+            in.close();
+        }
+        return handler;
+    }
+
+    public void testDecode() throws Exception {
+        CountingHandler handler = decode("coverage-with-data.coverdata");
+        assertEquals(42, handler.files);
+        assertTrue(handler.bumps > 0);
+        assertTrue(handler.hits > 0);
+    }
+
+    public void testDecodeMapped() throws Exception {
+        CountingHandler expected = decode("coverage-with-data.coverdata");
+
+        File file = new File(getClass().getResource("/hudson/plugins/erlangcover/coverage-with-data.coverdata").toURI());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // Small segments to force remapping
+            CountingHandler handler = new CountingHandler();
+            new CoverDataDecoder(handler).decode(new MappedCoverData(raf.getChannel(), raf.length(), 4096));
+            assertEquals(expected.files, handler.files);
+            assertEquals(expected.bumps, handler.bumps);
+            assertEquals(expected.hits, handler.hits);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public void testDecodeSizeMarker() throws Exception {
+        // {'$size', 22} marker followed by {file, m, "m.beam"} term
+        byte[] data = {
+                13, (byte) 131, 104, 2, 100, 0, 5, '$', 's', 'i', 'z', 'e', 97, 22,
+                (byte) 131, 104, 3, 100, 0, 4, 'f', 'i', 'l', 'e', 115, 1, 'm', 107, 0, 6, 'm', '.', 'b', 'e', 'a', 'm'
+        };
+        CountingHandler handler = new CountingHandler();
+        new CoverDataDecoder(handler).decode(new ByteArrayInputStream(data));
+        assertEquals(1, handler.files);
+        assertTrue(handler.modules.contains("m"));
+    }
+
+    public void testAtomsShared() throws Exception {
+        final Map<String, String> atoms = new HashMap<String, String>();
+        CoverDataHandler handler = new CoverDataHandler() {
+            public void onFile(String module, String beamPath) {
+                check(module);
+            }
+
+            public void onBump(String module, String function, int arity, int clause, int line, int hits) {
+                check(module);
+                check(function);
+            }
+
+            private void check(String atom) {
+                String previous = atoms.get(atom);
+                if (previous == null) {
+                    atoms.put(atom, atom);
+                } else {
+                    assertSame(previous, atom);
+                }
+            }
+        };
+        InputStream in = getClass().getResourceAsStream("/hudson/plugins/erlangcover/coverage-with-data.coverdata");
+        try {
+            new CoverDataDecoder(handler).decode(in);
+        } finally {
+            in.close();
+        }
+        assertTrue(atoms.size() > 42);
+    }
+
+    public void testFilter() throws Exception {
+        CountingHandler all = decode("coverage-with-data.coverdata");
+        String module = all.modules.iterator().next();
+
+        CountingHandler handler = new CountingHandler();
+        InputStream in = getClass().getResourceAsStream("/hudson/plugins/erlangcover/coverage-with-data.coverdata");
+        try {
+            new CoverDataDecoder(handler, ModuleFilter.create(module.substring(0, module.length() - 1) + "?", null))
+                    .decode(in);
+        } finally {
+            in.close();
+        }
+        assertEquals(1, handler.files);
+        assertTrue(handler.modules.contains(module));
+
+        handler = new CountingHandler();
+        in = getClass().getResourceAsStream("/hudson/plugins/erlangcover/coverage-with-data.coverdata");
+        try {
+            new CoverDataDecoder(handler, ModuleFilter.create("*", module)).decode(in);
+        } finally {
+            in.close();
+        }
+        assertEquals(all.files - 1, handler.files);
+        assertFalse(handler.modules.contains(module));
+    }
+
+    public void testShortReads() throws Exception {
+        CountingHandler expected = decode("coverage-with-data.coverdata");
+
+        InputStream in = getClass().getResourceAsStream("/hudson/plugins/erlangcover/coverage-with-data.coverdata");
+        try {
+            CountingHandler handler = new CountingHandler();
+            new CoverDataDecoder(handler).decode(new SlowInputStream(ByteStreams.toByteArray(in)));
+            assertEquals(expected.bumps, handler.bumps);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testTruncated() throws Exception {
+        byte[] data = {10, (byte) 131, 104, 2};
+        try {
+            new CoverDataDecoder(new CountingHandler()).decode(new ByteArrayInputStream(data));
+            fail("Expected exception thrown");
+        } catch (IOException e) {
+            assertTrue("Expected exception thrown", true);
+        }
+    }
+
+    /**
+     * <code>{file, m, "m.beam"}</code> term with its size.
+     */
+    private static final byte[] FILE_TERM = {
+            22, (byte) 131, 104, 3, 100, 0, 4, 'f', 'i', 'l', 'e', 115, 1, 'm', 107, 0, 6, 'm', '.', 'b', 'e', 'a', 'm'
+    };
+
+    /**
+     * Encodes <code>{{bump, m, Function, 0, 1, 7}, Hits}</code> without the version tag.
+     */
+    private static byte[] bump(String function, int hits) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(new byte[]{104, 2, 104, 6});
+        for (String atom : new String[]{"bump", "m", function}) {
+            out.writeByte(100);
+            out.writeShort(atom.length());
+            out.writeBytes(atom);
+        }
+        out.write(new byte[]{97, 0, 97, 1, 97, 7, 97, (byte) hits});
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encodes the term the way <code>term_to_binary(Term, [compressed])</code> does, preceded by its size.
+     *
+     * @param size uncompressed size to declare
+     */
+    private static byte[] compressed(byte[] term, int size, int compressedLength) throws IOException {
+        Deflater deflater = new Deflater();
+        deflater.setInput(term);
+        deflater.finish();
+        byte[] deflated = new byte[term.length + 64];
+        int length = Math.min(deflater.deflate(deflated), compressedLength);
+        deflater.end();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(6 + length);
+        out.writeByte(131);
+        out.writeByte(80);
+        out.writeInt(size);
+        out.write(deflated, 0, length);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            bytes.write(part, 0, part.length);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<String> decodeBumps(byte[] data) throws IOException {
+        final List<String> bumps = new ArrayList<String>();
+        new CoverDataDecoder(new CoverDataHandler() {
+            public void onFile(String module, String beamPath) {
+            }
+
+            public void onBump(String module, String function, int arity, int clause, int line, int hits) {
+                bumps.add(module + ':' + function + '/' + arity + ' ' + clause + ' ' + line + ' ' + hits);
+            }
+        }).decode(new ByteArrayInputStream(data));
+        return bumps;
+    }
+
+    public void testDecodeCompressed() throws Exception {
+        byte[] bump = bump("f", 5);
+        List<String> bumps = decodeBumps(concat(FILE_TERM, compressed(bump, bump.length, Integer.MAX_VALUE)));
+        assertEquals(Arrays.asList("m:f/0 1 7 5"), bumps);
+    }
+
+    public void testDecodeCompressedGrowsBuffer() throws Exception {
+        // terms larger than the initial inflate buffer, the second one larger than the grown buffer
+        StringBuilder function = new StringBuilder();
+        while (function.length() < 300) {
+            function.append('f');
+        }
+        byte[] small = bump("g", 1);
+        byte[] large = bump(function.toString(), 2);
+        byte[] larger = bump(function.toString() + function, 3);
+        List<String> bumps = decodeBumps(concat(FILE_TERM,
+                compressed(small, small.length, Integer.MAX_VALUE),
+                compressed(large, large.length, Integer.MAX_VALUE),
+                compressed(larger, larger.length, Integer.MAX_VALUE),
+                compressed(small, small.length, Integer.MAX_VALUE)));
+        assertEquals(Arrays.asList("m:g/0 1 7 1", "m:" + function + "/0 1 7 2",
+                "m:" + function + function + "/0 1 7 3", "m:g/0 1 7 1"), bumps);
+    }
+
+    public void testDecodeCompressedCorrupted() throws Exception {
+        byte[] bump = bump("f", 5);
+        byte[] term = compressed(bump, bump.length, Integer.MAX_VALUE);
+        // not a deflate stream
+        byte[] corrupted = term.clone();
+        for (int i = 7; i < corrupted.length; i++) {
+            corrupted[i] = (byte) 0xff;
+        }
+        // deflate stream cut short, with and without the data
+        byte[] truncated = compressed(bump, bump.length, (term.length - 7) / 2);
+        byte[] unchecked = compressed(bump, bump.length, term.length - 7 - 4);
+        // declared size smaller than the inflated term
+        byte[] undersized = compressed(bump, bump.length - 10, Integer.MAX_VALUE);
+        // declared size larger than the inflated term
+        byte[] oversized = compressed(bump, bump.length + 10, Integer.MAX_VALUE);
+        for (byte[] data : new byte[][]{corrupted, truncated, unchecked, undersized, oversized}) {
+            try {
+                decodeBumps(concat(FILE_TERM, data));
+                fail("Expected exception thrown");
+            } catch (IOException e) {
+                assertTrue("Expected exception thrown", true);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package hudson.plugins.erlangcover.renderers;
+
+import hudson.plugins.erlangcover.targets.CoveragePaint;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * @author idubrov
+ */
+public class PaintedSourceWriterTest extends TestCase {
+
+    public void testPaint() throws Exception {
+        CoveragePaint paint = new CoveragePaint();
+        paint.paint(1, 3);
+        paint.paint(2, 0);
+        String source = "-module(a).\n\tX = <<\"&\">>,\r\n\r\nfoo() ->  ok.";
+        assertEquals(expected(source, paint), paint(source, paint));
+    }
+
+    public void testLineBreaks() throws Exception {
+        CoveragePaint paint = new CoveragePaint();
+        for (String source : new String[]{"", "\n", "\r", "\r\n", "a\n", "a\r\rb", "\n\n", "a\r\n\r\nb\n"}) {
+            assertEquals(source, expected(source, paint), paint(source, paint));
+        }
+    }
+
+    public void testLongLine() throws Exception {
+        CoveragePaint paint = new CoveragePaint();
+        paint.paint(2, 1234567);
+        StringBuilder source = new StringBuilder("x\n");
+        for (int i = 0; i < 10000; i++) {
+            source.append("a <b> & \t");
+        }
+        assertEquals(expected(source.toString(), paint), paint(source.toString(), paint));
+    }
+
+    private static String paint(String source, CoveragePaint paint) throws IOException {
+        StringWriter out = new StringWriter();
+        new PaintedSourceWriter(out).paint(new StringReader(source), paint);
+        return out.toString();
+    }
+
+    /**
+     * Rows as painted line by line with string replacement.
+     */
+    private static String expected(String source, CoveragePaint paint) throws IOException {
+        StringBuilder output = new StringBuilder();
+        BufferedReader input = new BufferedReader(new StringReader(source));
+        int line = 0;
+        String content;
+        while ((content = input.readLine()) != null) {
+            line++;
+            if (paint.isPainted(line)) {
+                int hits = paint.getHits(line);
+                output.append(hits > 0 ? "<tr class=\"coverFull\">\n" : "<tr class=\"coverNone\">\n");
+                output.append("<td class=\"line\"><a name='" + line + "'/>" + line + "</td>\n");
+                output.append("<td class=\"hits\">" + hits + "</td>\n");
+            } else {
+                output.append("<tr class=\"noCover\">\n");
+                output.append("<td class=\"line\"><a name='" + line + "'/>" + line + "</td>\n");
+                output.append("<td class=\"hits\"/>\n");
+            }
+            output.append("<td class=\"code\">" + content.replace("&", "&amp;").replace("<", "&lt;")
+                    .replace(">", "&gt;").replace(" ", "&nbsp;")
+                    .replace("\t", "&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;") + "</td>\n");
+            output.append("</tr>\n");
+        }
+        return output.toString();
+    }
+}
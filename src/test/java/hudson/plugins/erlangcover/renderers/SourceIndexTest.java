@@ -0,0 +1,68 @@
+package hudson.plugins.erlangcover.renderers;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * @author idubrov
+ */
+public class SourceIndexTest extends TestCase {
+    private File root;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = File.createTempFile("sources", "");
+        assertTrue(root.delete());
+        assertTrue(root.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(root);
+    }
+
+    public void testFind() throws Exception {
+        touch("apps/sip/src/sip_app.erl");
+        touch("apps/sip/src/sip_ua.erl");
+        touch("deps/lager/src/sip_ua.erl");
+        touch("_build/default/lib/sip/src/sip_app.erl");
+
+        SourceIndex index = SourceIndex.get(root);
+        assertEquals(new File(root, "apps/sip/src/sip_app.erl"), index.find("sip_app.erl"));
+        assertEquals(new File(root, "apps/sip/src/sip_ua.erl"), index.find("src/sip_ua.erl"));
+        assertNull(index.find("lager/src/sip_ua.erl"));
+        assertNull(index.find("rc/sip_ua.erl"));
+        assertNull(index.find("missing.erl"));
+    }
+
+    public void testRebuildOnChange() throws Exception {
+        touch("src/sip_app.erl");
+        SourceIndex index = SourceIndex.get(root);
+        assertSame(index, SourceIndex.get(root));
+        assertNull(index.find("sip_ua.erl"));
+
+        File dir = new File(root, "src");
+        touch("src/sip_ua.erl");
+        // modification time resolution of the file system may be coarser than the test
+        assertTrue(dir.setLastModified(dir.lastModified() + 2000));
+        assertEquals(new File(root, "src/sip_ua.erl"), SourceIndex.get(root).find("sip_ua.erl"));
+    }
+
+    private void touch(String path) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        assertTrue(file.createNewFile());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,147 @@
+package hudson.plugins.erlangcover.renderers;
+
+import hudson.plugins.erlangcover.targets.CoveragePaint;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author idubrov
+ */
+public class SourcePackTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("painted", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public void testWrite() throws Exception {
+        File painted = new File(dir, "painted");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(painted));
+        record(out, "src/sip_app.erl", "1 1", "<tr>app</tr>");
+        record(out, "src/sip_ua.erl", "2 2", "<tr>ua</tr>");
+        out.close();
+        File first = new File(dir, "1.pack");
+        SourcePack.write(painted, null, first);
+
+        SourcePack pack = SourcePack.open(first);
+        assertTrue(pack.contains("src/sip_app.erl"));
+        assertFalse(pack.contains("src/sip_sup.erl"));
+        assertEquals("<tr>ua</tr>", new String(pack.read("src/sip_ua.erl"), "UTF-8"));
+        assertNull(pack.read("src/sip_sup.erl"));
+        assertEquals("1 1", pack.getDigests().get("src/sip_app.erl"));
+
+        ByteArrayOutputStream member = new ByteArrayOutputStream();
+        assertTrue(pack.transferTo("src/sip_app.erl", Channels.newChannel(member)));
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(member.toByteArray()));
+        byte[] content = new byte[64];
+        int n = in.read(content);
+        assertEquals("<tr>app</tr>", new String(content, 0, n, "UTF-8"));
+
+        // second build changes one source and reuses the other
+        out = new DataOutputStream(new FileOutputStream(painted));
+        record(out, "src/sip_ua.erl", "3 3", "<tr>ua2</tr>");
+        out.writeUTF("src/sip_app.erl");
+        out.writeUTF("1 1");
+        out.writeInt(-1);
+        out.close();
+        File second = new File(dir, "2.pack");
+        SourcePack.write(painted, pack, second);
+
+        SourcePack next = SourcePack.open(second);
+        assertEquals("<tr>app</tr>", new String(next.read("src/sip_app.erl"), "UTF-8"));
+        assertEquals("<tr>ua2</tr>", new String(next.read("src/sip_ua.erl"), "UTF-8"));
+        assertEquals("3 3", next.getDigests().get("src/sip_ua.erl"));
+    }
+
+    public void testPreviousDeleted() throws Exception {
+        File painted = new File(dir, "painted");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(painted));
+        record(out, "src/sip_app.erl", "1 1", "<tr>app</tr>");
+        out.close();
+        File first = new File(dir, "1.pack");
+        SourcePack.write(painted, null, first);
+        SourcePack pack = SourcePack.open(first);
+        assertTrue(first.delete());
+
+        out = new DataOutputStream(new FileOutputStream(painted));
+        out.writeUTF("src/sip_app.erl");
+        out.writeUTF("1 1");
+        out.writeInt(-1);
+        out.close();
+        File second = new File(dir, "2.pack");
+        try {
+            SourcePack.write(painted, pack, second);
+            fail("previous pack is deleted");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(second.exists());
+        assertFalse(new File(dir, "2.pack.tmp").exists());
+    }
+
+    public void testMissing() throws Exception {
+        assertNull(SourcePack.open(new File(dir, "missing.pack")));
+    }
+
+    public void testDigest() throws Exception {
+        File source = write("sip_app.erl", "-module(sip_app).\n");
+        CoveragePaint paint = new CoveragePaint();
+        paint.paint(1, 2);
+        String digest = SourcePack.digest(source, "UTF-8", paint);
+        assertEquals(digest, SourcePack.digest(source, "UTF-8", paint));
+        assertFalse(digest.equals(SourcePack.digest(source, "ISO-8859-1", paint)));
+
+        CoveragePaint other = new CoveragePaint();
+        other.paint(1, 3);
+        assertFalse(digest.equals(SourcePack.digest(source, "UTF-8", other)));
+
+        write("sip_app.erl", "-module(sip_app).\n-export([]).\n");
+        assertFalse(digest.equals(SourcePack.digest(source, "UTF-8", paint)));
+    }
+
+    private static void record(DataOutputStream out, String path, String digest, String content)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(content.getBytes("UTF-8"));
+        gzip.close();
+        out.writeUTF(path);
+        out.writeUTF(digest);
+        out.writeInt(bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -1,12 +1,14 @@
 package hudson.plugins.erlangcover.targets;
 
+import hudson.plugins.erlangcover.Ratio;
 import junit.framework.TestCase;
-import org.junit.Ignore;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created by IntelliJ IDEA.
@@ -15,8 +17,87 @@ import java.io.ObjectOutputStream;
  * Time: 18:01:31
  * To change this template use File | Settings | File Templates.
  */
-@Ignore
 public class CoveragePaintTest extends TestCase {
+
+    public void testPaint() throws Exception {
+        CoveragePaint paint = new CoveragePaint();
+        paint.paint(10, 1);
+        paint.paint(12, 0);
+        paint.paint(5, 3);
+        paint.paint(10, 2);
+        assertEquals(Integer.valueOf(5), paint.getFirstLine());
+        assertEquals(3, paint.getHits(10));
+        assertEquals(3, paint.getHits(5));
+        assertEquals(0, paint.getHits(12));
+        assertTrue(paint.isPainted(12));
+        assertFalse(paint.isPainted(11));
+        assertEquals(Ratio.create(2, 3), paint.getLineCoverage());
+    }
+
+    public void testAdd() throws Exception {
+        CoveragePaint paint = new CoveragePaint();
+        paint.paint(1, 1);
+        paint.paint(3, 0);
+        CoveragePaint other = new CoveragePaint();
+        other.paint(2, 0);
+        other.paint(3, 4);
+        other.paint(7, 0);
+        paint.add(other);
+        assertEquals(1, paint.getHits(1));
+        assertEquals(0, paint.getHits(2));
+        assertEquals(4, paint.getHits(3));
+        assertTrue(paint.isPainted(7));
+        assertEquals(Ratio.create(2, 4), paint.getLineCoverage());
+        assertEquals(4, other.getHits(3));
+    }
+
+    public void testSum() throws Exception {
+        CoveragePaint second = new CoveragePaint();
+        second.paint(10, 2);
+        second.paint(12, 0);
+        CoveragePaint first = new CoveragePaint();
+        first.paint(1, 1);
+        first.paint(3, 0);
+        CoveragePaint overlapping = new CoveragePaint();
+        overlapping.paint(3, 4);
+        List<CoveragePaint> paints = Arrays.asList(second, first, overlapping);
+        CoveragePaint sum = CoveragePaint.sum(paints);
+        assertEquals(Integer.valueOf(1), sum.getFirstLine());
+        assertEquals(4, sum.getHits(3));
+        assertEquals(2, sum.getHits(10));
+        assertEquals(Ratio.create(3, 4), sum.getLineCoverage());
+        assertEquals(Arrays.asList(second, first, overlapping), paints);
+    }
+
+    public void testDigest() throws Exception {
+        CoveragePaint paint = new CoveragePaint();
+        paint.paint(1, 1);
+        paint.paint(3, 0);
+        CoveragePaint same = new CoveragePaint();
+        same.paint(3, 0);
+        same.paint(1, 1);
+        CoveragePaint other = new CoveragePaint();
+        other.paint(1, 1);
+        other.paint(3, 1);
+        assertEquals(paint.getDigest(), same.getDigest());
+        assertFalse(paint.getDigest() == other.getDigest());
+    }
+
+    public void testSerializable() throws Exception {
+        CoveragePaint instance = new CoveragePaint();
+        instance.paint(5, 7);
+        instance.paint(6, 0);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(instance);
+        oos.flush();
+        ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
+        ObjectInputStream ois = new ObjectInputStream(bis);
+        CoveragePaint copy = (CoveragePaint) ois.readObject();
+        assertEquals(instance.getLineCoverage(), copy.getLineCoverage());
+        assertEquals(7, copy.getHits(5));
+    }
+
 //    public CoveragePaintTest(String string) {
 //        super(string);
 //    }